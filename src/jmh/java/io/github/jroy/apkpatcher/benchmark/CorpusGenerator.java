@@ -0,0 +1,414 @@
+package io.github.jroy.apkpatcher.benchmark;
+
+import io.github.jroy.apkpatcher.patcher.Patch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates stand-ins for the APKs we patch but can't share: a tree shaped like one decoded by apktool, and an unsigned
+ * APK of a similar shape.
+ * <p>
+ * Everything is derived from the seed, so the same settings always generate the same bytes and any run can be
+ * reproduced offline at any scale. The terms of the given patches are planted into random classes, so searches find
+ * them like they would in a real APK.
+ */
+public class CorpusGenerator {
+  private static final String[] WORDS = {"app", "core", "data", "ui", "net", "util", "model", "view", "auth", "media",
+      "cache", "sync", "player", "feed", "chat", "store", "common", "internal", "impl", "api"};
+  private static final LocalDateTime FIXED_TIME = LocalDateTime.of(2008, 1, 1, 0, 0);
+
+  private final long seed;
+  private final int classes;
+  private final int smaliFolders;
+  private final int packageDepth;
+  private final int minFileSize;
+  private final int maxFileSize;
+  private final List<Patch> patches;
+  private final int hitsPerPatch;
+  private final int resources;
+  private final double storedRatio;
+  private final int nativeLibraries;
+
+  private CorpusGenerator(Builder builder) {
+    this.seed = builder.seed;
+    this.classes = builder.classes;
+    this.smaliFolders = builder.smaliFolders;
+    this.packageDepth = builder.packageDepth;
+    this.minFileSize = builder.minFileSize;
+    this.maxFileSize = builder.maxFileSize;
+    this.patches = builder.patches;
+    this.hitsPerPatch = builder.hitsPerPatch;
+    this.resources = builder.resources;
+    this.storedRatio = builder.storedRatio;
+    this.nativeLibraries = builder.nativeLibraries;
+  }
+
+  /**
+   * Writes a decoded APK with {@code apktool.yml}, a manifest, resources and the smali folders into the directory.
+   *
+   * @return The paths of the classes the terms of each patch were planted in, relative to the directory and by patch
+   * name.
+   */
+  public Map<String, List<String>> writeTree(File directory) throws IOException {
+    final Random random = new Random(seed);
+    final Path root = directory.toPath();
+    Files.createDirectories(root);
+    Files.writeString(root.resolve("apktool.yml"), apktoolYml(), StandardCharsets.UTF_8);
+    Files.writeString(root.resolve("AndroidManifest.xml"), manifest(), StandardCharsets.UTF_8);
+    Files.createDirectories(root.resolve("res/values"));
+    Files.writeString(root.resolve("res/values/strings.xml"), strings(random, resources), StandardCharsets.UTF_8);
+
+    final List<String> packages = packages(random);
+    final List<List<Patch>> planted = plantHits(random);
+    final Map<String, List<String>> hits = new LinkedHashMap<>();
+    for (Patch patch : patches) {
+      hits.put(patch.getName(), new ArrayList<>());
+    }
+
+    for (int i = 0; i < classes; i++) {
+      final String smaliPackage = packages.get(random.nextInt(packages.size()));
+      final List<Patch> classHits = planted.get(i);
+      String className = "C" + i;
+      for (Patch patch : classHits) {
+        if (patch.isFileNameTerm()) {
+          className = fileNameTerm(patch) + i;
+        }
+      }
+
+      final String path = smaliFolder(i) + "/" + smaliPackage + "/" + className + ".smali";
+      final Path file = root.resolve(path);
+      Files.createDirectories(file.getParent());
+      Files.writeString(file, smaliClass(random, "L" + smaliPackage + "/" + className + ";", fileSize(random), classHits), StandardCharsets.UTF_8);
+      for (Patch patch : classHits) {
+        hits.get(patch.getName()).add(path);
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * Writes an unsigned APK with a dex file per smali folder, resources and native libraries, whose entries are stored
+   * or deflated in the configured mix.
+   */
+  public void writeApk(File apk) throws IOException {
+    final Random random = new Random(seed);
+    try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(apk.toPath())))) {
+      putEntry(zip, "AndroidManifest.xml", manifest().getBytes(StandardCharsets.UTF_8), false);
+      // apktool stores resources.arsc so it can be mapped.
+      putEntry(zip, "resources.arsc", randomBytes(random, fileSize(random) * 4), true);
+      // Dex files are roughly a quarter of the size of the smali they're assembled from.
+      final long smaliSize = (long) (classes * averageFileSize() / smaliFolders);
+      final int dexSize = (int) Math.min(64L * 1024 * 1024, Math.max(1024, smaliSize / 4));
+      for (int i = 0; i < smaliFolders; i++) {
+        putEntry(zip, (i == 0 ? "classes" : "classes" + (i + 1)) + ".dex", compressibleBytes(random, dexSize), false);
+      }
+      for (int i = 0; i < resources; i++) {
+        final boolean stored = random.nextDouble() < storedRatio;
+        // Stored resources stand in for images, which don't compress, deflated ones for xml.
+        final byte[] data = stored ? randomBytes(random, fileSize(random)) : compressibleBytes(random, fileSize(random));
+        putEntry(zip, "res/" + (stored ? "drawable-xhdpi/r" + i + ".png" : "layout/r" + i + ".xml"), data, stored);
+      }
+      for (int i = 0; i < nativeLibraries; i++) {
+        putEntry(zip, "lib/arm64-v8a/libnative" + i + ".so", randomBytes(random, maxFileSize * 4), true);
+      }
+    }
+  }
+
+  /**
+   * Generates a smali class of at least the given size, with a comment line holding every term of the given patches.
+   */
+  public static String smaliClass(Random random, String descriptor, int size, List<Patch> plantedPatches) {
+    final StringBuilder smali = new StringBuilder()
+        .append(".class public ").append(descriptor).append('\n')
+        .append(".super Ljava/lang/Object;\n")
+        .append(".source \"Generated.java\"\n\n");
+
+    int method = 0;
+    for (Patch patch : plantedPatches) {
+      smali.append(".method public planted").append(method++).append("()V\n")
+          .append("    .registers 1\n\n");
+      if (!patch.isFileNameTerm()) {
+        for (String term : patch.getTerms()) {
+          smali.append("    # ").append(term).append('\n');
+        }
+      }
+      smali.append("\n    return-void\n")
+          .append(".end method\n\n");
+    }
+
+    while (smali.length() < size) {
+      smali.append(".method public method").append(method++).append("()V\n")
+          .append("    .registers 3\n\n")
+          .append("    const-string v0, \"").append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000)).append("\"\n\n")
+          .append("    invoke-static {v0}, Landroid/util/Log;->d(Ljava/lang/String;)I\n\n")
+          .append("    return-void\n")
+          .append(".end method\n\n");
+    }
+    return smali.toString();
+  }
+
+  private String smaliFolder(int classIndex) {
+    final int folder = classIndex % smaliFolders;
+    return folder == 0 ? "smali" : "smali_classes" + (folder + 1);
+  }
+
+  /**
+   * Sizes are spread evenly over orders of magnitude, so most files are small and a few are huge, like in real APKs.
+   */
+  private int fileSize(Random random) {
+    final double min = Math.log(minFileSize);
+    final double max = Math.log(maxFileSize);
+    return (int) Math.exp(min + random.nextDouble() * (max - min));
+  }
+
+  private double averageFileSize() {
+    if (minFileSize == maxFileSize) {
+      return minFileSize;
+    }
+    return (maxFileSize - minFileSize) / Math.log((double) maxFileSize / minFileSize);
+  }
+
+  private List<String> packages(Random random) {
+    final List<String> packages = new ArrayList<>();
+    final int count = Math.max(1, classes / 20);
+    for (int i = 0; i < count; i++) {
+      final StringBuilder smaliPackage = new StringBuilder("com/vendor").append(i % 8);
+      final int depth = 1 + random.nextInt(Math.max(1, packageDepth - 1));
+      for (int j = 0; j < depth; j++) {
+        smaliPackage.append('/').append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      packages.add(smaliPackage.toString());
+    }
+    return packages;
+  }
+
+  private List<List<Patch>> plantHits(Random random) {
+    final List<List<Patch>> planted = new ArrayList<>(classes);
+    for (int i = 0; i < classes; i++) {
+      planted.add(new ArrayList<>());
+    }
+    for (Patch patch : patches) {
+      for (int i = 0; i < hitsPerPatch; i++) {
+        planted.get(random.nextInt(classes)).add(patch);
+      }
+    }
+    return planted;
+  }
+
+  private static String fileNameTerm(Patch patch) {
+    final String name = String.join("", patch.getTerms());
+    if (!name.matches("[A-Za-z0-9_$]+")) {
+      throw new IllegalArgumentException("The file name terms of " + patch.getName() + " can't be used as a class name");
+    }
+    return name;
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    final byte[] data = new byte[size];
+    random.nextBytes(data);
+    return data;
+  }
+
+  private static byte[] compressibleBytes(Random random, int size) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(12));
+    }
+    return data;
+  }
+
+  private static void putEntry(ZipOutputStream zip, String name, byte[] data, boolean stored) throws IOException {
+    final ZipEntry entry = new ZipEntry(name);
+    // A fixed local time keeps the output the same across runs and time zones.
+    entry.setTimeLocal(FIXED_TIME);
+    if (stored) {
+      final CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+      entry.setCrc(crc.getValue());
+    }
+    zip.putNextEntry(entry);
+    zip.write(data);
+    zip.closeEntry();
+  }
+
+  private static String apktoolYml() {
+    return """
+        !!brut.androlib.meta.MetaInfo
+        apkFileName: corpus.apk
+        compressionType: false
+        doNotCompress:
+        - resources.arsc
+        - png
+        isFrameworkApk: false
+        packageInfo:
+          forcedPackageId: '127'
+          renameManifestPackage: null
+        sdkInfo:
+          minSdkVersion: '24'
+          targetSdkVersion: '31'
+        sharedLibrary: false
+        sparseResources: false
+        usesFramework:
+          ids:
+          - 1
+          tag: null
+        version: 2.6.1
+        versionInfo:
+          versionCode: '1'
+          versionName: '1.0'
+        """;
+  }
+
+  private static String manifest() {
+    return """
+        <?xml version="1.0" encoding="utf-8" standalone="no"?>
+        <manifest xmlns:android="http://schemas.android.com/apk/res/android" package="com.vendor.corpus">
+            <application android:label="@string/app_name"/>
+        </manifest>
+        """;
+  }
+
+  private static String strings(Random random, int count) {
+    final StringBuilder strings = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n")
+        .append("    <string name=\"app_name\">Corpus</string>\n");
+    for (int i = 0; i < count; i++) {
+      strings.append("    <string name=\"s").append(i).append("\">").append(WORDS[random.nextInt(WORDS.length)]).append("</string>\n");
+    }
+    return strings.append("</resources>\n").toString();
+  }
+
+  /**
+   * Writes a corpus for load tests: {@code <directory> [seed] [classes] [storedRatio]}.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: CorpusGenerator <directory> [seed] [classes] [storedRatio]");
+      System.exit(1);
+      return;
+    }
+    final File directory = new File(args[0]);
+    final Builder builder = new Builder()
+        .setSeed(args.length > 1 ? Long.parseLong(args[1]) : 1)
+        .setClasses(args.length > 2 ? Integer.parseInt(args[2]) : 10_000);
+    if (args.length > 3) {
+      builder.setStoredRatio(Double.parseDouble(args[3]));
+    }
+    final CorpusGenerator generator = builder.build();
+    generator.writeTree(new File(directory, "decoded"));
+    generator.writeApk(new File(directory, "unsigned.apk"));
+    System.out.println("Generated corpus in " + directory.getPath());
+  }
+
+  public static class Builder {
+    private long seed = 1;
+    private int classes = 1000;
+    private int smaliFolders = 2;
+    private int packageDepth = 5;
+    private int minFileSize = 256;
+    private int maxFileSize = 1024 * 1024;
+    private List<Patch> patches = Collections.emptyList();
+    private int hitsPerPatch = 1;
+    private int resources = 500;
+    private double storedRatio = 0.3;
+    private int nativeLibraries = 2;
+
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public Builder setClasses(int classes) {
+      if (classes < 1) {
+        throw new IllegalArgumentException("classes must be at least 1");
+      }
+      this.classes = classes;
+      return this;
+    }
+
+    /**
+     * Sets the amount of smali folders, and dex files, the classes are spread across.
+     */
+    public Builder setSmaliFolders(int smaliFolders) {
+      if (smaliFolders < 1) {
+        throw new IllegalArgumentException("smaliFolders must be at least 1");
+      }
+      this.smaliFolders = smaliFolders;
+      return this;
+    }
+
+    /**
+     * Sets the deepest a package may be, below its {@code com/vendorN} root.
+     */
+    public Builder setPackageDepth(int packageDepth) {
+      if (packageDepth < 1) {
+        throw new IllegalArgumentException("packageDepth must be at least 1");
+      }
+      this.packageDepth = packageDepth;
+      return this;
+    }
+
+    /**
+     * Sets the range the sizes of classes and resources are picked from.
+     */
+    public Builder setFileSizes(int minFileSize, int maxFileSize) {
+      if (minFileSize < 1 || maxFileSize < minFileSize) {
+        throw new IllegalArgumentException("File sizes must be at least 1 and in order");
+      }
+      this.minFileSize = minFileSize;
+      this.maxFileSize = maxFileSize;
+      return this;
+    }
+
+    /**
+     * Sets the patches whose terms are planted, and into how many classes each.
+     */
+    public Builder setPatches(List<Patch> patches, int hitsPerPatch) {
+      this.patches = patches;
+      this.hitsPerPatch = hitsPerPatch;
+      return this;
+    }
+
+    public Builder setResources(int resources) {
+      this.resources = resources;
+      return this;
+    }
+
+    /**
+     * Sets the share of resources stored instead of deflated in the APK.
+     */
+    public Builder setStoredRatio(double storedRatio) {
+      if (storedRatio < 0 || storedRatio > 1) {
+        throw new IllegalArgumentException("storedRatio must be between 0 and 1");
+      }
+      this.storedRatio = storedRatio;
+      return this;
+    }
+
+    public Builder setNativeLibraries(int nativeLibraries) {
+      this.nativeLibraries = nativeLibraries;
+      return this;
+    }
+
+    public CorpusGenerator build() {
+      return new CorpusGenerator(this);
+    }
+  }
+}
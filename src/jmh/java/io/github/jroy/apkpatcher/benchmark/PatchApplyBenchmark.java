@@ -0,0 +1,73 @@
+package io.github.jroy.apkpatcher.benchmark;
+
+import io.github.jroy.apkpatcher.patcher.Patch;
+import io.github.jroy.apkpatcher.patcher.PatchAttachPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a large smali file through {@link Patch#apply(File)}, with attachment points which only match at its end.
+ * <p>
+ * The attachment points keep the lines they match and add nothing, so the file is the same after every run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PatchApplyBenchmark {
+  @Param({"65536", "4194304"})
+  public int size;
+
+  private File file;
+
+  @Setup
+  public void setUp() throws Exception {
+    file = File.createTempFile("apkpatcher-patch", ".smali");
+    final String smali = CorpusGenerator.smaliClass(new Random(1), "Lcom/example/Large;", size, Collections.emptyList())
+        + ".method public target()V\n    .registers 1\n\n    return-void\n.end method\n";
+    Files.writeString(file.toPath(), smali, StandardCharsets.UTF_8);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file.toPath());
+  }
+
+  @Benchmark
+  public boolean apply() {
+    return new TargetPatch().apply(file);
+  }
+
+  private static class TargetPatch extends Patch {
+    private TargetPatch() {
+      super("target", "target()V");
+      addAttachmentPoint(new KeepLine(this, "\\.method public target\\(\\)V"));
+      addAttachmentPoint(new KeepLine(this, "\\s+\\.registers 1"));
+    }
+  }
+
+  private static class KeepLine extends PatchAttachPoint {
+    private KeepLine(Patch patch, String attachmentPoint) {
+      super(patch, attachmentPoint);
+    }
+
+    @Override
+    protected boolean applyLine(String matchedLine, Scanner scanner) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package io.github.jroy.apkpatcher.benchmark;
+
+import io.github.jroy.apkpatcher.patcher.IApply;
+import io.github.jroy.apkpatcher.patcher.Patch;
+import io.github.jroy.apkpatcher.util.FileSearcher;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crawls a tree generated by {@link CorpusGenerator} with {@link FileSearcher#searchAndApply()}.
+ * <p>
+ * None of the terms occur in the tree, so every run crawls and matches every file, like a search for patches which
+ * don't apply to an APK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SearchBenchmark {
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"1", "16"})
+  public int patches;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File workspace;
+
+  @Setup
+  public void setUp() throws Exception {
+    workspace = Files.createTempDirectory("apkpatcher-search").toFile();
+    new CorpusGenerator.Builder()
+        .setClasses(files)
+        .setFileSizes(512, 64 * 1024)
+        .build()
+        .writeTree(workspace);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(workspace);
+  }
+
+  @Benchmark
+  public void searchAndApply() throws Exception {
+    final IApply[] searchPatches = new IApply[patches];
+    for (int i = 0; i < patches; i++) {
+      searchPatches[i] = new Patch("missing-" + i, "Lcom/benchmark/Missing" + i + ";", "->missing" + i + "(");
+    }
+    new FileSearcher(workspace, null, false, searchPatches, threads).searchAndApply();
+  }
+}
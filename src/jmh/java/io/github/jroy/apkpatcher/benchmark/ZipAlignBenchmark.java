@@ -0,0 +1,73 @@
+package io.github.jroy.apkpatcher.benchmark;
+
+import io.github.jroy.apkpatcher.util.zipalign.ZipAligner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aligns an unsigned APK generated by {@link CorpusGenerator} with {@link ZipAligner#run()}, either one with many
+ * small entries like an APK full of resources or one with a few large entries like an APK made of dex files and native
+ * libraries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZipAlignBenchmark {
+  @Param({"MANY_SMALL", "FEW_LARGE"})
+  public Shape shape;
+
+  private File input;
+  private File output;
+
+  @Setup
+  public void setUp() throws Exception {
+    input = File.createTempFile("apkpatcher-align", ".apk");
+    output = File.createTempFile("apkpatcher-aligned", ".apk");
+    shape.generator().writeApk(input);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(input.toPath());
+    Files.deleteIfExists(output.toPath());
+  }
+
+  @Benchmark
+  public void align() {
+    new ZipAligner(input, output).run();
+  }
+
+  public enum Shape {
+    MANY_SMALL(new CorpusGenerator.Builder()
+        .setClasses(2000)
+        .setFileSizes(256, 8 * 1024)
+        .setResources(20_000)
+        .setNativeLibraries(0)),
+    FEW_LARGE(new CorpusGenerator.Builder()
+        .setClasses(20_000)
+        .setFileSizes(1024 * 1024, 8 * 1024 * 1024)
+        .setResources(8)
+        .setNativeLibraries(2));
+
+    private final CorpusGenerator.Builder generator;
+
+    Shape(CorpusGenerator.Builder generator) {
+      this.generator = generator;
+    }
+
+    private CorpusGenerator generator() {
+      return generator.build();
+    }
+  }
+}
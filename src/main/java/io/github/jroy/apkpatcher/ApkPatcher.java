@@ -7,25 +7,47 @@ import brut.androlib.err.InFileNotFoundException;
 import brut.androlib.options.BuildOptions;
 import brut.common.BrutException;
 import brut.directory.DirectoryException;
-import com.android.apksig.ApkSigner;
-import com.android.apksigner.PasswordRetriever;
-import com.android.apksigner.SignerParams;
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.apk.MinSdkVersionException;
+import com.android.apksig.util.DataSources;
 import io.github.jroy.apkpatcher.patcher.IApply;
+import io.github.jroy.apkpatcher.patcher.PatchProfiler;
+import io.github.jroy.apkpatcher.util.DecodeCache;
 import io.github.jroy.apkpatcher.util.FileSearcher;
+import io.github.jroy.apkpatcher.util.IncrementalBuild;
 import io.github.jroy.apkpatcher.util.Logger;
+import io.github.jroy.apkpatcher.util.ParallelRunnablesExecutor;
+import io.github.jroy.apkpatcher.util.PatchMetrics;
+import io.github.jroy.apkpatcher.util.PhaseMetrics;
+import io.github.jroy.apkpatcher.util.SignatureScheme;
+import io.github.jroy.apkpatcher.util.SigningProfile;
+import io.github.jroy.apkpatcher.util.zipalign.AlignmentPolicy;
+import io.github.jroy.apkpatcher.util.zipalign.CompressionPolicy;
 import io.github.jroy.apkpatcher.util.zipalign.ZipAligner;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.logging.LogManager;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class ApkPatcher {
   private final File inputApk;
   private final File outputApk;
+  private final File workspace;
   private final boolean skipDecode;
   private final boolean skipPatch;
   private final boolean skipBuild;
@@ -34,102 +56,275 @@ public class ApkPatcher {
   private final String keystoreAlias;
   private final String keystorePassword;
   private final String keyPassword;
+  private final SigningProfile signingProfile;
+  private final Set<SignatureScheme> signatureSchemes;
+  private final int minSdkVersion;
+  private final int signingThreads;
   private final IApply[] patches;
+  private final int searchThreads;
+  private final DecodeCache decodeCache;
+  private final boolean incrementalBuild;
+  private final AlignmentPolicy alignmentPolicy;
+  private final CompressionPolicy compressionPolicy;
+  private final int compressionThreads;
+  private final File metricsReport;
+  private final boolean patchProfiling;
+  private final PatchMetrics metrics;
+  private Set<String> modifiedSmaliFolders;
+  private File buildApk;
 
   public ApkPatcher(File inputApk, File outputApk, boolean skipDecode, boolean skipPatch, boolean skipBuild, String prioritySearch, File keystoreFile, String keystoreAlias, String keystorePassword, String keyPassword, IApply[] patches) {
-    this.inputApk = inputApk;
-    this.outputApk = outputApk;
-    this.skipDecode = skipDecode;
-    this.skipPatch = skipPatch;
-    this.skipBuild = skipBuild;
-    this.prioritySearch = prioritySearch;
-    this.keystoreFile = keystoreFile;
-    this.keystoreAlias = keystoreAlias;
-    this.keystorePassword = keystorePassword;
-    this.keyPassword = keyPassword;
-    this.patches = patches;
+    this(new Builder(inputApk, outputApk, patches)
+        .setSkipDecode(skipDecode)
+        .setSkipPatch(skipPatch)
+        .setSkipBuild(skipBuild)
+        .setPrioritySearch(prioritySearch)
+        .setKeystore(keystoreFile, keystoreAlias, keystorePassword, keyPassword));
+  }
+
+  private ApkPatcher(Builder builder) {
+    this.inputApk = builder.inputApk;
+    this.outputApk = builder.outputApk;
+    this.workspace = builder.workspace;
+    this.skipDecode = builder.skipDecode;
+    this.skipPatch = builder.skipPatch;
+    this.skipBuild = builder.skipBuild;
+    this.prioritySearch = builder.prioritySearch;
+    this.keystoreFile = builder.keystoreFile;
+    this.keystoreAlias = builder.keystoreAlias;
+    this.keystorePassword = builder.keystorePassword;
+    this.keyPassword = builder.keyPassword;
+    this.signingProfile = builder.signingProfile;
+    this.signatureSchemes = builder.signatureSchemes;
+    this.minSdkVersion = builder.minSdkVersion;
+    this.signingThreads = builder.signingThreads;
+    this.patches = builder.patches;
+    this.searchThreads = builder.searchThreads;
+    this.decodeCache = builder.decodeCache;
+    this.incrementalBuild = builder.incrementalBuild;
+    this.alignmentPolicy = builder.alignmentPolicy;
+    this.compressionPolicy = builder.compressionPolicy;
+    this.compressionThreads = builder.compressionThreads;
+    this.metricsReport = builder.metricsReport;
+    this.patchProfiling = builder.patchProfiling;
+    this.metrics = new PatchMetrics(inputApk.getName());
   }
 
   public void patch() throws IOException, ApkPatcherException {
-    final File outputDir = new File("output/");
+    decode();
+    applyPatches();
+    build();
+    sign();
+    writeMetricsReport();
+  }
+
+  /**
+   * @return The time and resources spent in each phase so far.
+   */
+  public PatchMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Writes the metrics as JSON to the report file, if one was set. {@link #patch()} does this once it's done.
+   */
+  public void writeMetricsReport() throws IOException {
+    if (metricsReport != null) {
+      metrics.writeJson(metricsReport);
+      Logger.info("Wrote metrics report to " + metricsReport.getPath());
+    }
+  }
 
-    if (!skipDecode) {
-      decode(outputDir);
+  /**
+   * Decodes the input APK into the workspace, unless decoding is skipped. This is the first of the stages
+   * {@link #patch()} runs, which can also be run one by one in order, even on different threads.
+   */
+  public void decode() throws IOException, ApkPatcherException {
+    if (skipDecode) {
+      return;
+    }
+    final PhaseMetrics decodeMetrics = metrics.get(PatchMetrics.Phase.DECODE);
+    try (PhaseMetrics.Span ignored = decodeMetrics.start()) {
+      decode(workspace);
+      decodeMetrics.addBytesRead(inputApk.length());
+      decodeMetrics.addBytesWritten(FileUtils.sizeOfDirectory(workspace));
     }
+  }
 
+  /**
+   * Searches the decoded APK and applies the patches, or only searches if patching is skipped.
+   */
+  public void applyPatches() throws IOException, ApkPatcherException {
     Logger.info((skipPatch ? "Searching" : "Patching") + " APK...");
 
-    final FileSearcher fileSearcher = new FileSearcher(outputDir, prioritySearch, !skipPatch, patches);
-    fileSearcher.searchAndApply();
+    final PhaseMetrics searchMetrics = metrics.get(PatchMetrics.Phase.SEARCH);
+    try (PhaseMetrics.Span ignored = searchMetrics.start()) {
+      final FileSearcher fileSearcher = new FileSearcher(workspace, prioritySearch, !skipPatch, patches, searchThreads);
+      fileSearcher.setMetrics(searchMetrics);
+      final PatchProfiler profiler = patchProfiling ? new PatchProfiler() : null;
+      if (profiler != null) {
+        fileSearcher.setProfiler(profiler);
+      }
+      fileSearcher.searchAndApply();
+      modifiedSmaliFolders = fileSearcher.getModifiedSmaliFolders();
+      if (profiler != null) {
+        profiler.printHotspots();
+      }
+    }
 
-    final File apktoolFile = new File(outputDir, "apktool.yml");
+    final File apktoolFile = new File(workspace, "apktool.yml");
     if (!apktoolFile.exists()) {
       throw new ApkPatcherException("Could not find apktool.yml file!");
     }
 
     Logger.info((skipPatch ? "Searched" : "Patched") + " APK!");
+  }
+
+  /**
+   * Builds the unsigned APK from the workspace, unless building is skipped.
+   */
+  public void build() throws IOException, ApkPatcherException {
+    if (skipBuild) {
+      return;
+    }
+    Logger.info("Building APK...");
 
-    if (!skipBuild) {
-      Logger.info("Building APK...");
+    final PhaseMetrics buildMetrics = metrics.get(PatchMetrics.Phase.BUILD);
+    try (PhaseMetrics.Span ignored = buildMetrics.start()) {
+      if (incrementalBuild) {
+        if (modifiedSmaliFolders == null) {
+          Logger.warn("Patches weren't applied in this run, rebuilding every dex file...");
+        } else if (inputApk.isFile()) {
+          new IncrementalBuild(inputApk, workspace).seed(modifiedSmaliFolders);
+        } else {
+          Logger.warn("Input APK not found, rebuilding every dex file...");
+        }
+      }
 
       final Androlib androlib = new Androlib(new BuildOptions());
       LogManager.getLogManager().reset(); // apktool does some weird stuff to the logger so just get rid of all that
 
-      final File tmpBuildApk = File.createTempFile("apkbuild", ".apk");
-      tmpBuildApk.deleteOnExit();
+      final File unsignedApk = new File(workspace, "build/unsigned.apk");
 
       try {
-        androlib.build(outputDir, tmpBuildApk);
+        androlib.build(workspace, unsignedApk);
       } catch (BrutException e) {
         throw new ApkPatcherException("Error while building APK", e);
       }
+      buildMetrics.addBytesWritten(unsignedApk.length());
+      buildApk = unsignedApk;
+    }
+  }
 
-      Logger.info("Aligning APK...");
-      final File tmpAlignApk = File.createTempFile("apkalign", ".apk");
-      tmpAlignApk.deleteOnExit();
-      new ZipAligner(tmpBuildApk, tmpAlignApk).run();
+  /**
+   * Aligns and signs the built APK into the output APK, unless building is skipped.
+   */
+  public void sign() throws IOException, ApkPatcherException {
+    if (skipBuild) {
+      return;
+    }
+    if (buildApk == null) {
+      throw new ApkPatcherException("The APK has to be built before it can be signed!");
+    }
 
-      Logger.info("Signing APK...");
+    Logger.info("Aligning and signing APK...");
 
-      try {
-        SignerParams signer = new SignerParams();
+    final PhaseMetrics signMetrics = metrics.get(PatchMetrics.Phase.ALIGN_AND_SIGN);
+    final File tmpOutputApk = File.createTempFile("apksigner", ".apk", outputApk.getAbsoluteFile().getParentFile());
+    try (PhaseMetrics.Span ignored = signMetrics.start();
+         ParallelRunnablesExecutor digestExecutor = signingThreads > 0 ? new ParallelRunnablesExecutor(signingThreads, signMetrics) : null;
+         ApkSignerEngine signerEngine = createSignerEngine(buildApk, digestExecutor)) {
+      final ZipAligner zipAligner = new ZipAligner(buildApk, tmpOutputApk, signerEngine, alignmentPolicy, compressionPolicy, compressionThreads);
+      zipAligner.setMetrics(signMetrics);
+      zipAligner.run();
+      Files.move(tmpOutputApk.toPath(), outputApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      if (signatureSchemes.contains(SignatureScheme.V4)) {
+        signV4(signerEngine);
+      }
+    } catch (RuntimeException e) {
+      throw new ApkPatcherException("Error while signing apk", e);
+    } finally {
+      Files.deleteIfExists(tmpOutputApk.toPath());
+    }
+    Files.deleteIfExists(buildApk.toPath());
+    buildApk = null;
 
-        signer.setKeystoreFile(keystoreFile.getPath());
-        signer.setKeystorePasswordSpec("pass:" + keystorePassword);
-        signer.setKeyPasswordSpec("pass:" + keyPassword);
-        signer.setKeystoreKeyAlias(keystoreAlias);
-        signer.setName("signer #1");
+    Logger.info("Signed APK!");
+  }
 
-        final PasswordRetriever passwordRetriever = new PasswordRetriever();
+  /**
+   * Writes the v4 signature of the output APK next to it, v4 signs the APK as it was written and not its entries.
+   */
+  private void signV4(ApkSignerEngine signerEngine) throws IOException, ApkPatcherException {
+    final File idsigFile = new File(outputApk.getPath() + ".idsig");
+    try (RandomAccessFile apk = new RandomAccessFile(outputApk, "r")) {
+      signerEngine.signV4(DataSources.asDataSource(apk, 0, apk.length()), idsigFile, false);
+    } catch (SignatureException e) {
+      throw new ApkPatcherException("Failed to generate the v4 signature", e);
+    }
+  }
 
-        try {
-          signer.loadPrivateKeyAndCerts(passwordRetriever);
-        } catch (Exception e) {
-          throw new ApkPatcherException("Failed to load signer", e);
-        }
+  /**
+   * @param digestExecutor The executor the v2 and v3 chunk digests are computed on, or null for apksig's own
+   *                       multi-threaded one.
+   */
+  private ApkSignerEngine createSignerEngine(File apk, ParallelRunnablesExecutor digestExecutor) throws ApkPatcherException, IOException {
+    final SigningProfile profile = signingProfile != null ? signingProfile : SigningProfile.load(keystoreFile, keystoreAlias, keystorePassword, keyPassword);
+    final int minSdkVersion = this.minSdkVersion != -1 ? this.minSdkVersion : readMinSdkVersion(apk);
+    if (!signatureSchemes.contains(SignatureScheme.V1) && minSdkVersion < SignatureScheme.V2_MIN_SDK_VERSION) {
+      throw new ApkPatcherException("The APK supports SDK " + minSdkVersion + ", which only verifies v1 signatures. Sign with v1 or raise the minSdkVersion to " + SignatureScheme.V2_MIN_SDK_VERSION + "!");
+    }
 
-        final ApkSigner.SignerConfig signerConfig = new ApkSigner.SignerConfig.Builder(signer.getKeystoreKeyAlias(), signer.getPrivateKey(), signer.getCerts()).build();
-        passwordRetriever.close();
+    try {
+      final DefaultApkSignerEngine signerEngine = new DefaultApkSignerEngine.Builder(Collections.singletonList(profile.getSignerConfig()), minSdkVersion)
+          .setV1SigningEnabled(signatureSchemes.contains(SignatureScheme.V1))
+          .setV2SigningEnabled(signatureSchemes.contains(SignatureScheme.V2))
+          .setV3SigningEnabled(signatureSchemes.contains(SignatureScheme.V3))
+          .build();
+      if (digestExecutor != null) {
+        signerEngine.setExecutor(digestExecutor);
+      }
+      return signerEngine;
+    } catch (InvalidKeyException e) {
+      throw new ApkPatcherException("Failed to load signer", e);
+    }
+  }
 
-        final File tmpOutputApk = File.createTempFile("apksigner", ".apk");
-        tmpOutputApk.deleteOnExit();
+  private static int readMinSdkVersion(File apk) throws ApkPatcherException, IOException {
+    try (ZipFile zipFile = new ZipFile(apk)) {
+      final ZipEntry manifestEntry = zipFile.getEntry("AndroidManifest.xml");
+      if (manifestEntry == null) {
+        throw new ApkPatcherException("Could not find AndroidManifest.xml in the built APK!");
+      }
+      try (InputStream in = zipFile.getInputStream(manifestEntry)) {
+        return ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(ByteBuffer.wrap(in.readAllBytes()));
+      }
+    } catch (MinSdkVersionException e) {
+      throw new ApkPatcherException("Failed to determine the minSdkVersion of the APK", e);
+    }
+  }
 
-        new ApkSigner.Builder(Collections.singletonList(signerConfig))
-            .setInputApk(tmpAlignApk)
-            .setOutputApk(tmpOutputApk)
-            .build()
-            .sign();
+  public void decode(final File outputDir) throws ApkPatcherException, IOException {
+    if (decodeCache == null) {
+      decodeApk(outputDir);
+      return;
+    }
 
-        Files.move(tmpOutputApk.toPath(), outputApk.toPath(), StandardCopyOption.REPLACE_EXISTING);
-      } catch (Exception e) {
-        throw new ApkPatcherException("Error while signing apk", e);
-      }
+    if (!inputApk.isFile()) {
+      throw new ApkPatcherException("The target APK wasn't found!");
+    }
 
-      Logger.info("Signed APK!");
+    final String cacheKey = decodeCache.key(inputApk);
+    if (decodeCache.restore(cacheKey, outputDir)) {
+      Logger.info("Restored decoded APK from cache!");
+      return;
     }
+
+    decodeApk(outputDir);
+    decodeCache.store(cacheKey, outputDir);
   }
 
-  public void decode(final File outputDir) throws ApkPatcherException, IOException {
+  private void decodeApk(final File outputDir) throws ApkPatcherException, IOException {
     if (outputDir.exists()) {
       Logger.warn("Deleting pre-existing output directory...");
       FileUtils.deleteDirectory(outputDir);
@@ -156,4 +351,191 @@ public class ApkPatcher {
     }
     Logger.info("APK Decoded!");
   }
+
+  public static class Builder {
+    private final File inputApk;
+    private final File outputApk;
+    private final IApply[] patches;
+    private File workspace = new File("output/");
+    private boolean skipDecode = false;
+    private boolean skipPatch = false;
+    private boolean skipBuild = false;
+    private String prioritySearch = null;
+    private File keystoreFile;
+    private String keystoreAlias;
+    private String keystorePassword;
+    private String keyPassword;
+    private SigningProfile signingProfile = null;
+    private Set<SignatureScheme> signatureSchemes = SignatureScheme.DEFAULT;
+    private int minSdkVersion = -1;
+    private int signingThreads = 0;
+    private int searchThreads = 1;
+    private DecodeCache decodeCache = null;
+    private boolean incrementalBuild = false;
+    private AlignmentPolicy alignmentPolicy = AlignmentPolicy.DEFAULT;
+    private CompressionPolicy compressionPolicy = CompressionPolicy.KEEP_ALL;
+    private int compressionThreads = 1;
+    private File metricsReport = null;
+    private boolean patchProfiling = false;
+
+    public Builder(File inputApk, File outputApk, IApply[] patches) {
+      this.inputApk = inputApk;
+      this.outputApk = outputApk;
+      this.patches = patches;
+    }
+
+    /**
+     * Sets the directory the APK is decoded into and built from, defaults to {@code output/}. Jobs which run at the
+     * same time need their own workspaces.
+     */
+    public Builder setWorkspace(File workspace) {
+      this.workspace = workspace;
+      return this;
+    }
+
+    public Builder setSkipDecode(boolean skipDecode) {
+      this.skipDecode = skipDecode;
+      return this;
+    }
+
+    public Builder setSkipPatch(boolean skipPatch) {
+      this.skipPatch = skipPatch;
+      return this;
+    }
+
+    public Builder setSkipBuild(boolean skipBuild) {
+      this.skipBuild = skipBuild;
+      return this;
+    }
+
+    public Builder setPrioritySearch(String prioritySearch) {
+      this.prioritySearch = prioritySearch;
+      return this;
+    }
+
+    /**
+     * Sets the keystore the APK is signed with, which is loaded again by every patcher. Prefer
+     * {@link #setSigningProfile(SigningProfile)} when signing more than one APK.
+     */
+    public Builder setKeystore(File keystoreFile, String keystoreAlias, String keystorePassword, String keyPassword) {
+      this.keystoreFile = keystoreFile;
+      this.keystoreAlias = keystoreAlias;
+      this.keystorePassword = keystorePassword;
+      this.keyPassword = keyPassword;
+      return this;
+    }
+
+    /**
+     * Sets the already loaded key the APK is signed with, which takes precedence over {@link #setKeystore}.
+     */
+    public Builder setSigningProfile(SigningProfile signingProfile) {
+      this.signingProfile = signingProfile;
+      return this;
+    }
+
+    /**
+     * Sets the schemes the APK is signed with, defaults to {@link SignatureScheme#DEFAULT}. Leaving out v1 saves
+     * hashing every entry twice when the APK only targets SDK 24 and above.
+     */
+    public Builder setSignatureSchemes(Set<SignatureScheme> signatureSchemes) {
+      SignatureScheme.validate(signatureSchemes);
+      this.signatureSchemes = EnumSet.copyOf(signatureSchemes);
+      return this;
+    }
+
+    /**
+     * Sets the minSdkVersion the signature has to be verifiable on, defaults to the one in the built APK's manifest.
+     */
+    public Builder setMinSdkVersion(int minSdkVersion) {
+      if (minSdkVersion < 1) {
+        throw new IllegalArgumentException("minSdkVersion must be at least 1");
+      }
+      this.minSdkVersion = minSdkVersion;
+      return this;
+    }
+
+    /**
+     * Sets the amount of threads the chunk digests of the v2 and v3 signatures are computed on. When not set, apksig
+     * computes them on its own multi-threaded executor.
+     */
+    public Builder setSigningThreads(int signingThreads) {
+      if (signingThreads < 1) {
+        throw new IllegalArgumentException("signingThreads must be at least 1");
+      }
+      this.signingThreads = signingThreads;
+      return this;
+    }
+
+    /**
+     * Sets the amount of threads used to search the smali folders, defaults to a single thread.
+     */
+    public Builder setSearchThreads(int searchThreads) {
+      if (searchThreads < 1) {
+        throw new IllegalArgumentException("searchThreads must be at least 1");
+      }
+      this.searchThreads = searchThreads;
+      return this;
+    }
+
+    /**
+     * Sets the cache decoded APKs are restored from instead of decoding them again, disabled by default.
+     */
+    public Builder setDecodeCache(DecodeCache decodeCache) {
+      this.decodeCache = decodeCache;
+      return this;
+    }
+
+    /**
+     * Sets if only the smali folders changed by patches should be re-assembled, with every other dex file and the
+     * compiled resources taken from the input APK. This assumes nothing but the patches changed the decoded APK.
+     */
+    public Builder setIncrementalBuild(boolean incrementalBuild) {
+      this.incrementalBuild = incrementalBuild;
+      return this;
+    }
+
+    /**
+     * Sets how the stored entries of the output APK are aligned, defaults to {@link AlignmentPolicy#DEFAULT}.
+     */
+    public Builder setAlignmentPolicy(AlignmentPolicy alignmentPolicy) {
+      this.alignmentPolicy = alignmentPolicy;
+      return this;
+    }
+
+    /**
+     * Sets how the entries of the built APK are recompressed while aligning, defaults to keeping the compression
+     * apktool used.
+     *
+     * @param compressionThreads The amount of threads entries are recompressed on.
+     */
+    public Builder setCompressionPolicy(CompressionPolicy compressionPolicy, int compressionThreads) {
+      if (compressionThreads < 1) {
+        throw new IllegalArgumentException("compressionThreads must be at least 1");
+      }
+      this.compressionPolicy = compressionPolicy;
+      this.compressionThreads = compressionThreads;
+      return this;
+    }
+
+    /**
+     * Sets the file a JSON report of the time and resources spent in each phase is written to, none by default.
+     */
+    public Builder setMetricsReport(File metricsReport) {
+      this.metricsReport = metricsReport;
+      return this;
+    }
+
+    /**
+     * Sets if the time, lines and regex evaluations spent on every patch and attachment point should be counted and
+     * logged once the search is done, disabled by default.
+     */
+    public Builder setPatchProfiling(boolean patchProfiling) {
+      this.patchProfiling = patchProfiling;
+      return this;
+    }
+
+    public ApkPatcher build() {
+      return new ApkPatcher(this);
+    }
+  }
 }
@@ -1,6 +1,13 @@
 package io.github.jroy.apkpatcher;
 
+import io.github.jroy.apkpatcher.patcher.PatchSet;
+import io.github.jroy.apkpatcher.util.DecodeCache;
 import io.github.jroy.apkpatcher.util.Logger;
+import io.github.jroy.apkpatcher.util.SignatureScheme;
+import io.github.jroy.apkpatcher.util.SigningProfile;
+import io.github.jroy.apkpatcher.util.zipalign.AlignmentPolicy;
+import io.github.jroy.apkpatcher.util.zipalign.CompressionPolicy;
+import io.github.jroy.apkpatcher.util.zipalign.ZipAligner;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.helper.HelpScreenException;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -8,6 +15,25 @@ import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.function.Consumer;
+
 public class ApkPatcherCli {
   public static void main(String[] args) {
     Logger.info("Loading ApkPatcher...");
@@ -19,8 +45,33 @@ public class ApkPatcherCli {
     parser.addArgument("--input-apk").help("Sets the input apk file name.").setDefault("input.apk").action(Arguments.store());
     parser.addArgument("--output-apk").help("Sets the output apk file name.").setDefault("patched.apk").action(Arguments.store());
     parser.addArgument("--keystore-file").help("Sets the keystore file name.").setDefault("default.keystore").action(Arguments.store());
+    parser.addArgument("--keystore-alias").help("Sets the alias of the key in the keystore.").setDefault("key0").action(Arguments.store());
     parser.addArgument("--keystore-pass").help("Sets the keystore password.").setDefault("password").action(Arguments.store());
     parser.addArgument("--key-pass").help("Sets the key password.").setDefault("password").action(Arguments.store());
+    parser.addArgument("--signature-schemes").help("Sets the comma separated signature schemes to sign with, out of v1, v2, v3 and v4.").setDefault("v1,v2,v3").action(Arguments.store());
+    parser.addArgument("--min-sdk-version").help("Sets the minSdkVersion the signature has to be verifiable on, read from the apk when not set.").type(Integer.class).action(Arguments.store());
+    parser.addArgument("--signing-threads").help("Sets the amount of threads the v2 and v3 signature digests are computed on, apksig picks them when not set.").type(Integer.class).action(Arguments.store());
+    parser.addArgument("--metrics-report").help("Sets the file a JSON report of the time spent in each phase is written to, in batch mode the directory each job writes one to.").action(Arguments.store());
+    parser.addArgument("--profile-patches").help("If present, ApkPatcher will log the time and regex evaluations spent on every patch and attachment point.").action(Arguments.storeTrue());
+    parser.addArgument("--search-threads").help("Sets the amount of threads the smali folders are searched on, in batch mode per apk.").type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors()).action(Arguments.store());
+    parser.addArgument("--decode-cache").help("Sets the directory decoded apks are cached in, so an apk which was patched before isn't decoded again. With --remote, set it on the daemon instead.").action(Arguments.store());
+    parser.addArgument("--decode-cache-size").help("Sets the size in megabytes the decode cache is trimmed to, least recently used apks first.").type(Long.class).setDefault(4096L).action(Arguments.store());
+    parser.addArgument("--incremental-build").help("If present, only the smali folders changed by patches are assembled again, everything else is taken from the input apk. The decoded apk must not be edited by hand, with --compile-only manual smali edits would ship the original dex files.").action(Arguments.storeTrue());
+    parser.addArgument("--compression-policy").help("Sets how the entries of the apk are recompressed, keep to leave them as apktool built them, distribution to store native libraries and the resource table and deflate dex files at the best level, store, or a deflate level from 0 to 9.").setDefault("keep").action(Arguments.store());
+    parser.addArgument("--compression-threads").help("Sets the amount of threads entries are recompressed on.").type(Integer.class).setDefault(1).action(Arguments.store());
+    parser.addArgument("--alignment").help("Sets the alignment in bytes of stored entries other than native libraries.").type(Integer.class).setDefault(ZipAligner.DEFAULT_ALIGNMENT).action(Arguments.store());
+    parser.addArgument("--native-library-alignment").help("Sets the alignment in bytes of stored native libraries.").type(Integer.class).setDefault(AlignmentPolicy.PAGE_ALIGNMENT).action(Arguments.store());
+    parser.addArgument("--patch-set").help("Sets the name of the patch set to apply, may be left out when only one is installed.").action(Arguments.store());
+    parser.addArgument("--workspace").help("Sets the directory apks are decoded into, in batch mode every job gets a directory inside of it.").setDefault("output").action(Arguments.store());
+    parser.addArgument("--batch").help("Sets a file listing the input apks to patch, one per line. Replaces --input-apk and --output-apk.").action(Arguments.store());
+    parser.addArgument("--batch-output").help("Sets the directory the apks patched in batch mode are written to.").setDefault("patched").action(Arguments.store());
+    parser.addArgument("--daemon").help("If present, ApkPatcher will stay running and patch apks sent to it with --remote.").action(Arguments.storeTrue());
+    parser.addArgument("--remote").help("If present, the apk will be patched by a running daemon instead.").action(Arguments.storeTrue());
+    parser.addArgument("--stop-daemon").help("If present, the running daemon will be stopped.").action(Arguments.storeTrue());
+    parser.addArgument("--socket").help("Sets the Unix domain socket the daemon listens on, defaults to daemon/daemon.sock in the workspace.").action(Arguments.store());
+    parser.addArgument("--port").help("If set, the daemon listens on this loopback port instead of a Unix domain socket. Every local user can connect to it, so requests have to carry the token from --token-file.").type(Integer.class).action(Arguments.store());
+    parser.addArgument("--token-file").help("Sets the file the daemon writes its token to when listening on --port, and clients read it from. Defaults to daemon/token in the workspace.").action(Arguments.store());
+    parser.addArgument("--jobs").help("Sets the amount of apks every stage of batch mode works on at the same time.").type(Integer.class).setDefault(1).action(Arguments.store());
 
     Namespace namespace;
     try {
@@ -32,14 +83,295 @@ public class ApkPatcherCli {
       }
     } catch (HelpScreenException e) {
       System.exit(0);
+      return;
     } catch (ArgumentParserException e) {
-      e.printStackTrace();
-      System.exit(0);
+      parser.handleError(e);
+      System.exit(1);
+      return;
     }
 
-    //TODO
+    final Path daemonDirectory = PatcherDaemon.getDirectory(new File(namespace.getString("workspace")));
+    final boolean tcp = namespace.getInt("port") != null;
+    final SocketAddress daemonAddress;
+    if (tcp) {
+      daemonAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), namespace.getInt("port"));
+    } else if (namespace.getString("socket") != null) {
+      daemonAddress = UnixDomainSocketAddress.of(namespace.getString("socket"));
+    } else {
+      daemonAddress = UnixDomainSocketAddress.of(daemonDirectory.resolve(PatcherDaemon.SOCKET_FILE));
+    }
+    final Path tokenFile = namespace.getString("token_file") != null ? Paths.get(namespace.getString("token_file")) : daemonDirectory.resolve(PatcherDaemon.TOKEN_FILE);
+
+    if (namespace.getBoolean("remote") || namespace.getBoolean("stop_daemon")) {
+      if (namespace.getString("decode_cache") != null) {
+        Logger.error("The decode cache of remote jobs is set when starting the daemon, not with --remote!");
+        System.exit(1);
+        return;
+      }
+      if (namespace.getBoolean("remote") && (namespace.getBoolean("no_decode") || namespace.getBoolean("compile_only") || namespace.getString("batch") != null)) {
+        Logger.error("The daemon always decodes and patches a single apk, --remote can't be used with --no-decode, --compile-only or --batch!");
+        System.exit(1);
+        return;
+      }
+      String token = null;
+      if (tcp) {
+        try {
+          token = PatcherDaemon.readToken(tokenFile);
+        } catch (IOException e) {
+          Logger.error("Could not read the daemon token from '" + tokenFile + "', set --token-file to the daemon's!");
+          System.exit(1);
+          return;
+        }
+      }
+      System.exit(sendToDaemon(namespace, daemonAddress, token) ? 0 : 1);
+      return;
+    }
+
+    final DecodeCache decodeCache = namespace.getString("decode_cache") != null
+        ? new DecodeCache(new File(namespace.getString("decode_cache")), namespace.getLong("decode_cache_size") * 1024 * 1024)
+        : null;
+
+    if (namespace.getBoolean("daemon")) {
+      final List<PatchSet> patchSets = new ArrayList<>();
+      ServiceLoader.load(PatchSet.class).forEach(patchSets::add);
+      try {
+        String token = null;
+        if (daemonAddress instanceof UnixDomainSocketAddress unixAddress && namespace.getString("socket") == null) {
+          PatcherDaemon.createDirectory(unixAddress.getPath().getParent());
+        }
+        if (tcp) {
+          if (namespace.getString("token_file") == null) {
+            PatcherDaemon.createDirectory(daemonDirectory);
+          }
+          token = PatcherDaemon.createToken(tokenFile);
+          Logger.info("Wrote the token clients need to '" + tokenFile + "'");
+        }
+        try (PatcherDaemon daemon = new PatcherDaemon(daemonAddress, token, new File(namespace.getString("workspace")), patchSets, builder -> builder.setDecodeCache(decodeCache))) {
+          daemon.run();
+        } finally {
+          if (tcp) {
+            Files.deleteIfExists(tokenFile);
+          }
+        }
+      } catch (IOException e) {
+        Logger.error("Daemon failed: " + e.getMessage());
+        e.printStackTrace();
+        System.exit(1);
+      }
+      return;
+    }
+
+    final PatchSet patchSet = findPatchSet(namespace.getString("patch_set"));
+    if (patchSet == null) {
+      System.exit(1);
+      return;
+    }
+
+    final boolean searchOnly = namespace.getBoolean("search_only");
+    final boolean noDecode = namespace.getBoolean("no_decode");
+    final boolean compileOnly = namespace.getBoolean("compile_only");
+    final Set<SignatureScheme> signatureSchemes;
+    try {
+      signatureSchemes = SignatureScheme.parse(namespace.getString("signature_schemes"));
+    } catch (IllegalArgumentException e) {
+      Logger.error("Invalid --signature-schemes: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    final CompressionPolicy compressionPolicy;
+    final AlignmentPolicy alignmentPolicy;
+    try {
+      compressionPolicy = CompressionPolicy.parse(namespace.getString("compression_policy"));
+      alignmentPolicy = AlignmentPolicy.of(namespace.getInt("alignment"), namespace.getInt("native_library_alignment"));
+    } catch (IllegalArgumentException e) {
+      Logger.error("Invalid compression or alignment: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (namespace.getInt("compression_threads") < 1) {
+      Logger.error("--compression-threads must be at least 1!");
+      System.exit(1);
+      return;
+    }
+    final Integer minSdkVersion = namespace.getInt("min_sdk_version");
+    if (namespace.getInt("search_threads") < 1) {
+      Logger.error("--search-threads must be at least 1!");
+      System.exit(1);
+      return;
+    }
+    final Consumer<ApkPatcher.Builder> options = builder -> {
+      builder
+          .setSkipDecode(noDecode || compileOnly)
+          .setSkipPatch(searchOnly || compileOnly)
+          .setSkipBuild(searchOnly)
+          .setKeystore(new File(namespace.getString("keystore_file")), namespace.getString("keystore_alias"), namespace.getString("keystore_pass"), namespace.getString("key_pass"))
+          .setSignatureSchemes(signatureSchemes)
+          .setSearchThreads(namespace.getInt("search_threads"))
+          .setDecodeCache(decodeCache)
+          .setIncrementalBuild(namespace.getBoolean("incremental_build"))
+          .setCompressionPolicy(compressionPolicy, namespace.getInt("compression_threads"))
+          .setAlignmentPolicy(alignmentPolicy)
+          .setPatchProfiling(namespace.getBoolean("profile_patches"));
+      if (minSdkVersion != null) {
+        builder.setMinSdkVersion(minSdkVersion);
+      }
+      if (namespace.getInt("signing_threads") != null) {
+        builder.setSigningThreads(namespace.getInt("signing_threads"));
+      }
+    };
+
+    final String batch = namespace.getString("batch");
+    if (batch != null) {
+      if (noDecode || compileOnly) {
+        Logger.error("Batch mode always decodes the input apks, it can't be used with --no-decode or --compile-only!");
+        System.exit(1);
+        return;
+      }
+
+      final List<BatchPatcher.Job> jobs;
+      try {
+        jobs = readBatch(new File(batch), new File(namespace.getString("batch_output")));
+      } catch (IOException e) {
+        Logger.error("Failed to read batch file '" + batch + "'!");
+        e.printStackTrace();
+        System.exit(1);
+        return;
+      }
+
+      final int jobCount = namespace.getInt("jobs");
+      if (jobCount < 1) {
+        Logger.error("--jobs must be at least 1!");
+        System.exit(1);
+        return;
+      }
+
+      // Load the keystore once instead of once per apk.
+      Consumer<ApkPatcher.Builder> batchOptions = options;
+      if (!searchOnly) {
+        try {
+          final SigningProfile signingProfile = SigningProfile.load(new File(namespace.getString("keystore_file")), namespace.getString("keystore_alias"), namespace.getString("keystore_pass"), namespace.getString("key_pass"));
+          batchOptions = options.andThen(builder -> builder.setSigningProfile(signingProfile));
+        } catch (ApkPatcherException e) {
+          Logger.error("Failed to load keystore: " + e.getMessage());
+          e.printStackTrace();
+          System.exit(1);
+          return;
+        }
+      }
+
+      final BatchPatcher batchPatcher = new BatchPatcher(new File(namespace.getString("workspace")), jobCount, patchSet::createPatches, batchOptions);
+      if (namespace.getString("metrics_report") != null) {
+        final File metricsReportDirectory = new File(namespace.getString("metrics_report"));
+        try {
+          Files.createDirectories(metricsReportDirectory.toPath());
+        } catch (IOException e) {
+          Logger.error("Failed to create metrics report directory '" + metricsReportDirectory + "'!");
+          System.exit(1);
+          return;
+        }
+        batchPatcher.setMetricsReportDirectory(metricsReportDirectory);
+      }
+      if (!BatchPatcher.allSucceeded(batchPatcher.run(jobs))) {
+        System.exit(1);
+        return;
+      }
+    } else {
+      final ApkPatcher.Builder builder = new ApkPatcher.Builder(new File(namespace.getString("input_apk")), new File(namespace.getString("output_apk")), patchSet.createPatches());
+      options.accept(builder);
+      if (namespace.getString("metrics_report") != null) {
+        builder.setMetricsReport(new File(namespace.getString("metrics_report")));
+      }
+      try {
+        builder.setWorkspace(new File(namespace.getString("workspace"))).build().patch();
+      } catch (ApkPatcherException | IOException e) {
+        Logger.error("Failed to patch apk: " + e.getMessage());
+        e.printStackTrace();
+        System.exit(1);
+        return;
+      }
+    }
 
     Logger.info("All Done :)");
   }
 
+  private static boolean sendToDaemon(Namespace namespace, SocketAddress address, String token) {
+    final Map<String, String> fields = new LinkedHashMap<>();
+    final String command;
+    if (namespace.getBoolean("stop_daemon")) {
+      command = PatcherDaemon.COMMAND_SHUTDOWN;
+    } else {
+      // The daemon doesn't share our working directory.
+      command = PatcherDaemon.COMMAND_PATCH;
+      fields.put("input", new File(namespace.getString("input_apk")).getAbsolutePath());
+      fields.put("output", new File(namespace.getString("output_apk")).getAbsolutePath());
+      fields.put("patch-set", namespace.getString("patch_set"));
+      fields.put("search-only", String.valueOf(namespace.getBoolean("search_only")));
+      fields.put("signature-schemes", namespace.getString("signature_schemes"));
+      if (namespace.getInt("min_sdk_version") != null) {
+        fields.put("min-sdk-version", String.valueOf(namespace.getInt("min_sdk_version")));
+      }
+      if (namespace.getInt("signing_threads") != null) {
+        fields.put("signing-threads", String.valueOf(namespace.getInt("signing_threads")));
+      }
+      if (namespace.getString("metrics_report") != null) {
+        fields.put("metrics-report", new File(namespace.getString("metrics_report")).getAbsolutePath());
+      }
+      fields.put("profile-patches", String.valueOf(namespace.getBoolean("profile_patches")));
+      fields.put("search-threads", String.valueOf(namespace.getInt("search_threads")));
+      fields.put("incremental-build", String.valueOf(namespace.getBoolean("incremental_build")));
+      fields.put("compression-policy", namespace.getString("compression_policy"));
+      fields.put("compression-threads", String.valueOf(namespace.getInt("compression_threads")));
+      fields.put("alignment", String.valueOf(namespace.getInt("alignment")));
+      fields.put("native-library-alignment", String.valueOf(namespace.getInt("native_library_alignment")));
+      fields.put("keystore-file", new File(namespace.getString("keystore_file")).getAbsolutePath());
+      fields.put("keystore-alias", namespace.getString("keystore_alias"));
+      fields.put("keystore-pass", namespace.getString("keystore_pass"));
+      fields.put("key-pass", namespace.getString("key_pass"));
+    }
+
+    try {
+      return new PatcherClient(address, token).send(command, fields, System.out::println);
+    } catch (IOException e) {
+      Logger.error("Could not reach the daemon at " + address + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  private static PatchSet findPatchSet(String name) {
+    final List<PatchSet> patchSets = new ArrayList<>();
+    for (PatchSet patchSet : ServiceLoader.load(PatchSet.class)) {
+      if (name == null || patchSet.getName().equals(name)) {
+        patchSets.add(patchSet);
+      }
+    }
+
+    if (patchSets.isEmpty()) {
+      Logger.error(name == null ? "No patch sets are installed!" : "Could not find patch set '" + name + "'!");
+      return null;
+    }
+    if (patchSets.size() > 1) {
+      Logger.error("Multiple patch sets are installed, pick one with --patch-set!");
+      return null;
+    }
+    return patchSets.get(0);
+  }
+
+  private static List<BatchPatcher.Job> readBatch(File batchFile, File outputDir) throws IOException {
+    Files.createDirectories(outputDir.toPath());
+
+    final List<BatchPatcher.Job> jobs = new ArrayList<>();
+    final Set<String> outputNames = new HashSet<>();
+    for (String line : Files.readAllLines(batchFile.toPath(), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final File inputApk = new File(line);
+      if (!outputNames.add(inputApk.getName())) {
+        throw new IOException("Multiple input apks are named '" + inputApk.getName() + "', their outputs would overwrite each other");
+      }
+      jobs.add(new BatchPatcher.Job(inputApk, new File(outputDir, inputApk.getName())));
+    }
+    return jobs;
+  }
 }
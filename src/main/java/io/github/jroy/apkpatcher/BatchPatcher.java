@@ -0,0 +1,249 @@
+package io.github.jroy.apkpatcher;
+
+import io.github.jroy.apkpatcher.patcher.IApply;
+import io.github.jroy.apkpatcher.util.Logger;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Patches many APKs at once, giving every job its own workspace directory.
+ * <p>
+ * Jobs flow through a pipeline of {@link Stage}s, each with its own pool of threads, so the next APK decodes while the
+ * current one builds and the previous one signs. Only as many APKs as there are stage threads are in flight at once,
+ * which keeps the amount of decoded workspaces bounded no matter how long the batch is.
+ * <p>
+ * The workspace of a job is deleted once it succeeds and kept for inspection when it fails.
+ */
+public class BatchPatcher {
+  private final File workspaceRoot;
+  private final Map<Stage, Integer> stageThreads = new EnumMap<>(Stage.class);
+  private final int maxInFlight;
+  private final Supplier<IApply[]> patches;
+  private final Consumer<ApkPatcher.Builder> options;
+  private File metricsReportDirectory;
+
+  /**
+   * @param workspaceRoot The directory the workspaces of the jobs are created in.
+   * @param jobs          The amount of APKs every stage works on at the same time.
+   * @param patches       Creates the patches of a job, patches keep state so every job needs its own.
+   * @param options       Applies the options shared by every job, such as the keystore, to its builder.
+   */
+  public BatchPatcher(File workspaceRoot, int jobs, Supplier<IApply[]> patches, Consumer<ApkPatcher.Builder> options) {
+    this(workspaceRoot, threadsForEveryStage(jobs), patches, options);
+  }
+
+  /**
+   * @param stageThreads The amount of threads of every stage, stages left out get one.
+   * @see #BatchPatcher(File, int, Supplier, Consumer)
+   */
+  public BatchPatcher(File workspaceRoot, Map<Stage, Integer> stageThreads, Supplier<IApply[]> patches, Consumer<ApkPatcher.Builder> options) {
+    int maxInFlight = 0;
+    for (Stage stage : Stage.values()) {
+      final int threads = stageThreads.getOrDefault(stage, 1);
+      if (threads < 1) {
+        throw new IllegalArgumentException("The " + stage + " stage needs at least 1 thread");
+      }
+      this.stageThreads.put(stage, threads);
+      maxInFlight += threads;
+    }
+    this.workspaceRoot = workspaceRoot;
+    this.maxInFlight = maxInFlight;
+    this.patches = patches;
+    this.options = options;
+  }
+
+  /**
+   * Sets the directory a metrics report named after each job is written to, see
+   * {@link ApkPatcher.Builder#setMetricsReport(File)}.
+   */
+  public void setMetricsReportDirectory(File metricsReportDirectory) {
+    this.metricsReportDirectory = metricsReportDirectory;
+  }
+
+  /**
+   * Runs every job and waits for all of them to finish, whether they fail or not.
+   *
+   * @return The result of every job, in the order they were given.
+   */
+  public List<Result> run(List<Job> batch) {
+    Logger.info("Patching " + batch.size() + " APKs with stage threads " + stageThreads + "...");
+    final long start = System.nanoTime();
+
+    final Map<Stage, ExecutorService> executors = new EnumMap<>(Stage.class);
+    for (Stage stage : Stage.values()) {
+      executors.put(stage, Executors.newFixedThreadPool(stageThreads.get(stage), runnable -> new Thread(runnable, "ApkPatcher-" + stage)));
+    }
+
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final List<CompletableFuture<Result>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        final Job job = batch.get(i);
+        final File workspace = new File(workspaceRoot, i + "-" + job.getName());
+        // Blocks until a job leaves the pipeline, so no more than maxInFlight workspaces exist at once.
+        inFlight.acquire();
+        final long jobStart = System.nanoTime();
+
+        CompletableFuture<ApkPatcher> future;
+        try {
+          future = CompletableFuture.completedFuture(createPatcher(job, workspace));
+        } catch (RuntimeException e) {
+          future = CompletableFuture.failedFuture(e);
+        }
+        for (Stage stage : Stage.values()) {
+          future = future.thenApplyAsync(patcher -> runStage(stage, job, patcher), executors.get(stage));
+        }
+        futures.add(future.handle((patcher, error) -> {
+          try {
+            return finishJob(job, workspace, jobStart, error);
+          } finally {
+            inFlight.release();
+          }
+        }));
+      }
+    } catch (InterruptedException e) {
+      // Stop feeding the pipeline but let the jobs already in it finish.
+      Thread.currentThread().interrupt();
+    }
+
+    final List<Result> results = new ArrayList<>();
+    try {
+      for (CompletableFuture<Result> future : futures) {
+        results.add(future.join());
+      }
+    } finally {
+      executors.values().forEach(ExecutorService::shutdown);
+    }
+
+    int failed = 0;
+    for (Result result : results) {
+      if (result.success()) {
+        Logger.info("[" + result.job().getName() + "] OK in " + result.millis() + "ms");
+      } else {
+        failed++;
+        Logger.error("[" + result.job().getName() + "] FAILED in " + result.millis() + "ms: " + result.error());
+      }
+    }
+    Logger.info("Patched " + (results.size() - failed) + "/" + batch.size() + " APKs in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    return results;
+  }
+
+  /**
+   * @return true if every result succeeded.
+   */
+  public static boolean allSucceeded(List<Result> results) {
+    for (Result result : results) {
+      if (!result.success()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ApkPatcher createPatcher(Job job, File workspace) {
+    final ApkPatcher.Builder builder = new ApkPatcher.Builder(job.inputApk(), job.outputApk(), patches.get());
+    options.accept(builder);
+    if (metricsReportDirectory != null) {
+      builder.setMetricsReport(new File(metricsReportDirectory, job.getName() + ".json"));
+    }
+    return builder.setWorkspace(workspace).build();
+  }
+
+  private static ApkPatcher runStage(Stage stage, Job job, ApkPatcher patcher) {
+    Logger.setTag(job.getName());
+    try {
+      stage.task.run(patcher);
+      return patcher;
+    } catch (ApkPatcherException | IOException e) {
+      throw new CompletionException(e);
+    } finally {
+      Logger.setTag(null);
+    }
+  }
+
+  private static Result finishJob(Job job, File workspace, long start, Throwable error) {
+    Logger.setTag(job.getName());
+    try {
+      if (error == null) {
+        try {
+          FileUtils.deleteDirectory(workspace);
+          return new Result(job, true, elapsedMillis(start), null);
+        } catch (IOException e) {
+          error = e;
+        }
+      } else if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      Logger.error("Failed to patch " + job.inputApk().getName() + ": " + error.getMessage());
+      return new Result(job, false, elapsedMillis(start), error);
+    } finally {
+      Logger.setTag(null);
+    }
+  }
+
+  private static Map<Stage, Integer> threadsForEveryStage(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("jobs must be at least 1");
+    }
+    final Map<Stage, Integer> stageThreads = new EnumMap<>(Stage.class);
+    for (Stage stage : Stage.values()) {
+      stageThreads.put(stage, threads);
+    }
+    return stageThreads;
+  }
+
+  private static long elapsedMillis(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /**
+   * The stages every job goes through in order, see the matching methods of {@link ApkPatcher}.
+   */
+  public enum Stage {
+    DECODE(ApkPatcher::decode),
+    PATCH(ApkPatcher::applyPatches),
+    BUILD(ApkPatcher::build),
+    SIGN(patcher -> {
+      patcher.sign();
+      patcher.writeMetricsReport();
+    });
+
+    private final StageTask task;
+
+    Stage(StageTask task) {
+      this.task = task;
+    }
+  }
+
+  private interface StageTask {
+    void run(ApkPatcher patcher) throws IOException, ApkPatcherException;
+  }
+
+  public record Job(File inputApk, File outputApk) {
+    public String getName() {
+      final String name = inputApk.getName();
+      final int extension = name.lastIndexOf('.');
+      return extension > 0 ? name.substring(0, extension) : name;
+    }
+  }
+
+  /**
+   * @param error The reason the job failed, null if it succeeded.
+   */
+  public record Result(Job job, boolean success, long millis, Throwable error) {
+  }
+}
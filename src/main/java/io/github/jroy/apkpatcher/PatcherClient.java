@@ -0,0 +1,78 @@
+package io.github.jroy.apkpatcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Sends requests to a {@link PatcherDaemon} and streams its output back.
+ */
+public class PatcherClient {
+  private final SocketAddress address;
+  private final String token;
+
+  public PatcherClient(SocketAddress address) {
+    this(address, null);
+  }
+
+  /**
+   * @param token The token the daemon requires, or null if it doesn't require one.
+   */
+  public PatcherClient(SocketAddress address, String token) {
+    this.address = address;
+    this.token = token;
+  }
+
+  /**
+   * Sends a request and waits for the daemon to finish it.
+   *
+   * @param output Receives every line the daemon logged while running the request.
+   * @return true if the request succeeded, false if it failed.
+   */
+  public boolean send(String command, Map<String, String> fields, Consumer<String> output) throws IOException {
+    try (SocketChannel channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open()) {
+      channel.connect(address);
+
+      final Writer out = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+      out.write(command + "\n");
+      if (token != null) {
+        out.write("token=" + token + "\n");
+      }
+      for (Map.Entry<String, String> field : fields.entrySet()) {
+        if (field.getValue() == null) {
+          continue;
+        }
+        if (field.getValue().indexOf('\n') != -1 || field.getValue().indexOf('\r') != -1) {
+          throw new IllegalArgumentException("Field " + field.getKey() + " can't contain a line break");
+        }
+        out.write(field.getKey() + "=" + field.getValue() + "\n");
+      }
+      out.write("\n");
+      out.flush();
+
+      final BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.startsWith(PatcherDaemon.RESPONSE_LOG)) {
+          output.accept(line.substring(PatcherDaemon.RESPONSE_LOG.length()));
+        } else if (line.startsWith(PatcherDaemon.RESPONSE_OK)) {
+          return true;
+        } else if (line.startsWith(PatcherDaemon.RESPONSE_FAILED)) {
+          output.accept("[ApkPatcher] [ERROR] " + line.substring(PatcherDaemon.RESPONSE_FAILED.length()));
+          return false;
+        }
+      }
+      throw new IOException("The daemon closed the connection before finishing the request");
+    }
+  }
+}
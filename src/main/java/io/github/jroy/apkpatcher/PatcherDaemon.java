@@ -0,0 +1,358 @@
+package io.github.jroy.apkpatcher;
+
+import io.github.jroy.apkpatcher.patcher.PatchSet;
+import io.github.jroy.apkpatcher.util.Logger;
+import io.github.jroy.apkpatcher.util.SignatureScheme;
+import io.github.jroy.apkpatcher.util.SigningProfile;
+import io.github.jroy.apkpatcher.util.zipalign.AlignmentPolicy;
+import io.github.jroy.apkpatcher.util.zipalign.CompressionPolicy;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a JVM with apktool and apksig loaded resident, and patches APKs sent to it over a local socket.
+ * <p>
+ * The protocol is line based. A request is a command line, followed by {@code key=value} lines and an empty line. The
+ * daemon answers with {@code LOG <line>} for every logged line and ends with {@code OK <millis>} or
+ * {@code FAILED <reason>}. Jobs run one at a time, requests which arrive while a job is running wait for it.
+ * <p>
+ * Anyone who can connect can make the daemon read and write files as its user. By default the daemon listens on a Unix
+ * domain socket in a directory only its user can access. A loopback TCP address can be connected to by every local
+ * user, so it requires every request to carry a token, which is shared through a file only the user can read.
+ */
+public class PatcherDaemon implements Closeable {
+  public static final String DIRECTORY = "daemon";
+  public static final String SOCKET_FILE = "daemon.sock";
+  public static final String TOKEN_FILE = "token";
+  public static final String COMMAND_PATCH = "PATCH";
+  public static final String COMMAND_PING = "PING";
+  public static final String COMMAND_SHUTDOWN = "SHUTDOWN";
+  public static final String RESPONSE_LOG = "LOG ";
+  public static final String RESPONSE_OK = "OK ";
+  public static final String RESPONSE_FAILED = "FAILED ";
+
+  private final SocketAddress address;
+  private final String token;
+  private final ServerSocketChannel server;
+  private final File workspaceRoot;
+  private final Map<String, PatchSet> patchSets = new LinkedHashMap<>();
+  private final Consumer<ApkPatcher.Builder> options;
+  private final ReentrantLock jobLock = new ReentrantLock();
+  private final AtomicInteger jobCounter = new AtomicInteger();
+  private final Map<KeystoreReference, SigningProfile> signingProfiles = new ConcurrentHashMap<>();
+  private volatile boolean stopping = false;
+
+  /**
+   * @param address       A loopback or Unix domain socket address to listen on.
+   * @param token         The token every request has to carry, required for loopback addresses and optional for Unix
+   *                      domain sockets.
+   * @param workspaceRoot The directory the workspaces of the jobs are created in.
+   * @param patchSets     The patch sets jobs may ask for.
+   * @param options       Applies the options shared by every job, such as a decode cache, to its builder.
+   */
+  public PatcherDaemon(SocketAddress address, String token, File workspaceRoot, List<PatchSet> patchSets, Consumer<ApkPatcher.Builder> options) throws IOException {
+    if (!(address instanceof UnixDomainSocketAddress) && (token == null || token.isEmpty())) {
+      throw new IllegalArgumentException("Listening on " + address + " requires a token");
+    }
+    this.address = address;
+    this.token = token;
+    this.workspaceRoot = workspaceRoot;
+    this.options = options;
+    for (PatchSet patchSet : patchSets) {
+      this.patchSets.put(patchSet.getName(), patchSet);
+    }
+
+    if (address instanceof UnixDomainSocketAddress unixAddress) {
+      deleteStaleSocket(unixAddress);
+    }
+    this.server = address instanceof UnixDomainSocketAddress ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+    try {
+      server.bind(address);
+      if (address instanceof UnixDomainSocketAddress unixAddress) {
+        setOwnerOnly(unixAddress.getPath());
+      }
+    } catch (IOException e) {
+      server.close();
+      throw new IOException("Could not listen on " + address + ", is another daemon running?", e);
+    }
+  }
+
+  /**
+   * @return The directory the default socket and token file are kept in.
+   */
+  public static Path getDirectory(File workspaceRoot) {
+    return workspaceRoot.toPath().resolve(DIRECTORY);
+  }
+
+  /**
+   * Creates the directory the daemon keeps its socket and token file in, which only the current user may access.
+   */
+  public static void createDirectory(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    setOwnerOnly(directory);
+  }
+
+  /**
+   * Writes a new random token to a file only the current user can read, replacing any previous token.
+   */
+  public static String createToken(Path tokenFile) throws IOException {
+    final byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    final StringBuilder token = new StringBuilder();
+    for (byte b : bytes) {
+      token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+
+    Files.deleteIfExists(tokenFile);
+    try {
+      Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      Files.createFile(tokenFile);
+    }
+    Files.writeString(tokenFile, token, StandardCharsets.UTF_8);
+    return token.toString();
+  }
+
+  public static String readToken(Path tokenFile) throws IOException {
+    return Files.readString(tokenFile, StandardCharsets.UTF_8).trim();
+  }
+
+  private static void setOwnerOnly(Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(Files.isDirectory(path) ? "rwx------" : "rw-------"));
+    } catch (UnsupportedOperationException e) {
+      Logger.warn("Could not restrict access to " + path + ", the file system has no POSIX permissions!");
+    }
+  }
+
+  /**
+   * A daemon which didn't shut down cleanly leaves its socket file behind, which would fail the bind.
+   */
+  private static void deleteStaleSocket(UnixDomainSocketAddress address) throws IOException {
+    if (!Files.exists(address.getPath())) {
+      return;
+    }
+    try {
+      SocketChannel.open(address).close();
+    } catch (IOException e) {
+      // Nothing is listening on it anymore.
+      Files.deleteIfExists(address.getPath());
+    }
+  }
+
+  /**
+   * Accepts clients until the daemon is closed, either directly or by a {@value #COMMAND_SHUTDOWN} request, then waits
+   * for the running job to finish. Jobs which were still waiting for their turn are turned down.
+   */
+  public void run() throws IOException {
+    Logger.info("Daemon listening on " + address + " with patch sets " + patchSets.keySet() + "...");
+    while (server.isOpen()) {
+      final SocketChannel client;
+      try {
+        client = server.accept();
+      } catch (ClosedChannelException e) {
+        break;
+      }
+
+      final Thread thread = new Thread(() -> handle(client), "ApkPatcher-Daemon-Client");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    if (jobLock.isLocked()) {
+      Logger.info("Waiting for the running job to finish...");
+    }
+    jobLock.lock();
+    jobLock.unlock();
+    Logger.info("Daemon stopped!");
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopping = true;
+    server.close();
+    if (address instanceof UnixDomainSocketAddress unixAddress) {
+      Files.deleteIfExists(unixAddress.getPath());
+    }
+  }
+
+  private void handle(SocketChannel client) {
+    try (client;
+         BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8), true)) {
+      final String command = in.readLine();
+      if (command == null) {
+        return;
+      }
+      final Map<String, String> fields = readFields(in);
+      if (token != null && !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), fields.getOrDefault("token", "").getBytes(StandardCharsets.UTF_8))) {
+        Logger.warn("Refused a request with an invalid token!");
+        out.println(RESPONSE_FAILED + "Invalid token");
+        return;
+      }
+
+      switch (command) {
+        case COMMAND_PATCH -> patch(fields, out);
+        case COMMAND_PING -> out.println(RESPONSE_OK + 0);
+        case COMMAND_SHUTDOWN -> {
+          out.println(RESPONSE_OK + 0);
+          close();
+        }
+        default -> out.println(RESPONSE_FAILED + "Unknown command '" + command + "'");
+      }
+    } catch (IOException e) {
+      Logger.error("Lost connection to client: " + e.getMessage());
+    }
+  }
+
+  private void patch(Map<String, String> fields, PrintWriter out) {
+    final String input = fields.get("input");
+    final String output = fields.get("output");
+    if (input == null || output == null) {
+      out.println(RESPONSE_FAILED + "Both input and output are required");
+      return;
+    }
+
+    final PatchSet patchSet;
+    final String patchSetName = fields.get("patch-set");
+    if (patchSetName != null) {
+      patchSet = patchSets.get(patchSetName);
+    } else {
+      patchSet = patchSets.size() == 1 ? patchSets.values().iterator().next() : null;
+    }
+    if (patchSet == null) {
+      out.println(RESPONSE_FAILED + (patchSetName != null ? "Unknown patch set '" + patchSetName + "'" : "A patch set has to be picked from " + patchSets.keySet()));
+      return;
+    }
+
+    if (!jobLock.tryLock()) {
+      out.println(RESPONSE_LOG + "Waiting for the running job to finish...");
+      jobLock.lock();
+    }
+    if (stopping) {
+      jobLock.unlock();
+      out.println(RESPONSE_FAILED + "The daemon is shutting down");
+      return;
+    }
+    // Only lines logged by this job, including the threads it starts, are sent to the client.
+    final String jobName = "job-" + jobCounter.incrementAndGet();
+    final Consumer<String> listener = line -> out.println(RESPONSE_LOG + line);
+    Logger.setTag(jobName);
+    Logger.addListener(jobName, listener);
+    try {
+      final long start = System.nanoTime();
+      final File workspace = new File(workspaceRoot, jobName);
+      final boolean searchOnly = Boolean.parseBoolean(fields.get("search-only"));
+
+      final ApkPatcher.Builder builder = new ApkPatcher.Builder(new File(input), new File(output), patchSet.createPatches())
+          .setWorkspace(workspace)
+          .setSkipPatch(searchOnly)
+          .setSkipBuild(searchOnly)
+          .setKeystore(new File(fields.getOrDefault("keystore-file", "")), fields.get("keystore-alias"), fields.get("keystore-pass"), fields.get("key-pass"));
+      if (!searchOnly) {
+        builder.setSigningProfile(getSigningProfile(fields));
+      }
+      applyJobOptions(builder, fields);
+      options.accept(builder);
+      builder.build().patch();
+      FileUtils.deleteDirectory(workspace);
+
+      out.println(RESPONSE_OK + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (ApkPatcherException | IOException | RuntimeException e) {
+      Logger.error("Failed to patch " + input + ": " + e.getMessage());
+      out.println(RESPONSE_FAILED + String.valueOf(e.getMessage()).replace('\n', ' '));
+    } finally {
+      Logger.removeListener(listener);
+      Logger.setTag(null);
+      jobLock.unlock();
+    }
+  }
+
+  /**
+   * Applies the options a request sent along, so a job is patched the same as it would be by the client itself.
+   */
+  private static void applyJobOptions(ApkPatcher.Builder builder, Map<String, String> fields) {
+    if (fields.containsKey("signature-schemes")) {
+      builder.setSignatureSchemes(SignatureScheme.parse(fields.get("signature-schemes")));
+    }
+    if (fields.containsKey("min-sdk-version")) {
+      builder.setMinSdkVersion(Integer.parseInt(fields.get("min-sdk-version")));
+    }
+    if (fields.containsKey("signing-threads")) {
+      builder.setSigningThreads(Integer.parseInt(fields.get("signing-threads")));
+    }
+    if (fields.containsKey("metrics-report")) {
+      builder.setMetricsReport(new File(fields.get("metrics-report")));
+    }
+    builder.setPatchProfiling(Boolean.parseBoolean(fields.get("profile-patches")));
+    if (fields.containsKey("search-threads")) {
+      builder.setSearchThreads(Integer.parseInt(fields.get("search-threads")));
+    }
+    builder.setIncrementalBuild(Boolean.parseBoolean(fields.get("incremental-build")));
+    if (fields.containsKey("compression-policy")) {
+      builder.setCompressionPolicy(CompressionPolicy.parse(fields.get("compression-policy")), Integer.parseInt(fields.getOrDefault("compression-threads", "1")));
+    }
+    if (fields.containsKey("alignment")) {
+      builder.setAlignmentPolicy(AlignmentPolicy.of(Integer.parseInt(fields.get("alignment")), Integer.parseInt(fields.getOrDefault("native-library-alignment", String.valueOf(AlignmentPolicy.PAGE_ALIGNMENT)))));
+    }
+  }
+
+  /**
+   * Returns the profile of the keystore a request refers to, loading it only the first time it's used or after the
+   * keystore file changed.
+   */
+  private SigningProfile getSigningProfile(Map<String, String> fields) throws ApkPatcherException {
+    final File keystoreFile = new File(fields.getOrDefault("keystore-file", ""));
+    final KeystoreReference reference = new KeystoreReference(keystoreFile.getAbsolutePath(), keystoreFile.lastModified(), fields.get("keystore-alias"), fields.get("keystore-pass"), fields.get("key-pass"));
+    SigningProfile profile = signingProfiles.get(reference);
+    if (profile == null) {
+      profile = SigningProfile.load(keystoreFile, reference.alias(), reference.keystorePassword(), reference.keyPassword());
+      signingProfiles.put(reference, profile);
+    }
+    return profile;
+  }
+
+  private static Map<String, String> readFields(BufferedReader in) throws IOException {
+    final Map<String, String> fields = new HashMap<>();
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      final int separator = line.indexOf('=');
+      if (separator > 0) {
+        fields.put(line.substring(0, separator), line.substring(separator + 1));
+      }
+    }
+    return fields;
+  }
+
+  private record KeystoreReference(String path, long lastModified, String alias, String keystorePassword, String keyPassword) {
+  }
+}
@@ -2,21 +2,40 @@ package io.github.jroy.apkpatcher.patcher;
 
 import io.github.jroy.apkpatcher.util.Logger;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Patch implements IApply {
+  // Descriptors become paths, so the relative segments "." and ".." are rejected along with empty ones.
+  private static final Pattern CLASS_DESCRIPTOR = Pattern.compile("L(?:(?!\\.\\.?[/;])[^/;]+/)*(?!\\.\\.?;)[^/;]+;");
+  // Constructs which mean something else, or don't compile, once patterns are joined: back references and named groups
+  // refer to group numbers and names which clash, inline flags and a \Q without an \E spill into the next pattern.
+  private static final Pattern UNCOMBINABLE = Pattern.compile("\\\\(?:[1-9]|k<)|\\(\\?<[a-zA-Z]|\\(\\?[a-zA-Z-]+\\)|\\\\Q(?!.*\\\\E)", Pattern.DOTALL);
+
   private final String name;
   private final String[] terms;
   private final boolean fileNameTerm;
   private final boolean moveSmaliFolder;
-  private final HashSet<PatchAttachPoint> attachmentPoints = new HashSet<>();
-  private final List<String> patchedFile = new ArrayList<>();
+  private final List<String> targetClasses;
+  private final HashSet<PatchAttachPoint> attachmentPoints = new LinkedHashSet<>();
+  private PatchAttachPoint[] attachmentPointOrder;
+  private Pattern attachmentPointFilter;
+  private BufferedWriter patchedFile;
+  private PatchProfiler profiler;
+  private PatchProfiler.Stats[] attachPointStats;
+  private long profiledLines;
+  private long profiledEvaluations;
+  private long profiledNanos;
 
   private int applied = 0;
 
@@ -33,63 +52,222 @@ public class Patch implements IApply {
     this.fileNameTerm = fileNameTerm;
     this.moveSmaliFolder = moveSmaliFolder;
     this.terms = terms;
+    this.targetClasses = Collections.emptyList();
+  }
+
+  /**
+   * Creates a patch which targets the given classes directly, instead of searching every file for terms.
+   *
+   * @param targetClasses The descriptors of the classes to patch, such as {@code Lcom/foo/Bar;}. The classes are patched
+   *                      until every attachment point has been applied.
+   */
+  public Patch(String name, List<String> targetClasses) {
+    this(name, false, targetClasses);
+  }
+
+  public Patch(String name, boolean moveSmaliFolder, List<String> targetClasses) {
+    if (targetClasses.isEmpty()) {
+      throw new IllegalArgumentException("No target classes for Patch " + name);
+    }
+    for (String descriptor : targetClasses) {
+      if (!CLASS_DESCRIPTOR.matcher(descriptor).matches()) {
+        throw new IllegalArgumentException("Invalid target class for Patch " + name + ": " + descriptor);
+      }
+    }
+    this.name = name;
+    this.fileNameTerm = false;
+    this.moveSmaliFolder = moveSmaliFolder;
+    this.terms = new String[0];
+    this.targetClasses = List.copyOf(targetClasses);
   }
 
+  /**
+   * Streams the patched file into a temporary sibling file, which then atomically replaces the original file.
+   *
+   * @see PatchComposer#apply(File, List)
+   */
   @Override
   public final boolean apply(File file) {
-    try (Scanner fileScanner = new Scanner(file)) {
-      while (fileScanner.hasNextLine()) {
-        String line = fileScanner.nextLine();
-        Boolean success = checkAttachmentPoints(line, fileScanner);
-        if (success != null && success) {
-          continue;
-        }
-        patchedFile.add(line);
-      }
-      try (FileWriter writer = new FileWriter(file, false)) {
-        for (String line : patchedFile) {
-          writer.write(line + System.lineSeparator());
-        }
-      }
-      return applied == attachmentPoints.size();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    return PatchComposer.apply(file, Collections.singletonList(this))[0];
+  }
+
+  /**
+   * Starts patching a file, whose patched lines are written to the writer.
+   */
+  void begin(BufferedWriter writer) {
+    patchedFile = writer;
+    if (profiler != null) {
+      startProfiledFile();
+    }
+  }
+
+  /**
+   * Offers the next line of the file to the attachment points which haven't been applied yet.
+   *
+   * @return true if an attachment point took care of writing the line, false if the line still has to be written and
+   * null if an attachment point failed.
+   */
+  Boolean offerLine(String line, Scanner fileScanner) {
+    if (profiler == null) {
+      return checkAttachmentPoints(line, fileScanner);
+    }
+    final long start = System.nanoTime();
+    try {
+      profiledLines++;
+      return checkAttachmentPoints(line, fileScanner);
+    } finally {
+      profiledNanos += System.nanoTime() - start;
     }
   }
 
+  /**
+   * Finishes patching a file.
+   *
+   * @return If every attachment point has been applied.
+   */
+  boolean finish() {
+    patchedFile = null;
+    if (profiler != null) {
+      final PatchProfiler.Stats stats = profiler.getStats(this);
+      stats.addLinesScanned(profiledLines);
+      stats.addRegexEvaluations(profiledEvaluations);
+      stats.addNanos(profiledNanos);
+    }
+    return applied == attachmentPoints.size();
+  }
+
   @Override
   public boolean useNewDex() {
     return moveSmaliFolder;
   }
 
   private Boolean checkAttachmentPoints(String line, Scanner fileScanner) {
-    for (PatchAttachPoint attachPoint : attachmentPoints) {
-      if (line.matches(attachPoint.getAttachmentPoint())) {
-        if (attachPoint.isAddMatchedLine()) {
-          addPatchedLine(line);
+    if (applied == attachmentPoints.size()) {
+      return false;
+    }
+
+    if (attachmentPointOrder == null) {
+      compileAttachmentPoints();
+    }
+    if (attachmentPointFilter != null) {
+      profiledEvaluations++;
+      if (!attachmentPointFilter.matcher(line).matches()) {
+        return false;
+      }
+    }
+
+    for (int i = 0; i < attachmentPointOrder.length; i++) {
+      final PatchAttachPoint attachPoint = attachmentPointOrder[i];
+      if (attachPoint.isApplied()) {
+        continue;
+      }
+      final PatchProfiler.Stats stats = attachPointStats != null ? attachPointStats[i] : null;
+      final long start = stats != null ? System.nanoTime() : 0;
+      try {
+        profiledEvaluations++;
+        if (stats != null) {
+          stats.addLinesScanned(1);
+          stats.addRegexEvaluations(1);
         }
-        Boolean success = attachPoint.attachLine(line, fileScanner);
-        if (success != null) {
-          applied++;
-          if (success) {
-            Logger.info("Applied attachment point " + applied + "/" + attachmentPoints.size() + " for " + getName());
-            return true;
-          } else {
-            Logger.error("Error while applying attachment point " + applied + "/" + attachmentPoints.size() + " for " + getName());
-            return null;
+        if (attachPoint.getAttachmentPattern().matcher(line).matches()) {
+          if (stats != null) {
+            stats.addMatch();
+          }
+          if (attachPoint.isAddMatchedLine()) {
+            addPatchedLine(line);
           }
+          Boolean success = attachPoint.attachLine(line, fileScanner);
+          if (success != null) {
+            applied++;
+            if (success) {
+              Logger.info("Applied attachment point " + applied + "/" + attachmentPoints.size() + " for " + getName());
+              return true;
+            } else {
+              Logger.error("Error while applying attachment point " + applied + "/" + attachmentPoints.size() + " for " + getName());
+              return null;
+            }
+          }
+        }
+      } finally {
+        if (stats != null) {
+          stats.addNanos(System.nanoTime() - start);
         }
       }
     }
     return false;
   }
 
+  /**
+   * Counts the file being patched for every attachment point which is still looked for.
+   */
+  private void startProfiledFile() {
+    profiledLines = 0;
+    profiledEvaluations = 0;
+    profiledNanos = 0;
+    if (attachmentPointOrder == null) {
+      compileAttachmentPoints();
+    }
+    for (int i = 0; i < attachmentPointOrder.length; i++) {
+      if (!attachmentPointOrder[i].isApplied()) {
+        attachPointStats[i].addFileExamined();
+      }
+    }
+  }
+
+  /**
+   * Counts the work of this patch and its attachment points in the profiler, see {@link PatchProfiler#attach}.
+   */
+  void setProfiler(PatchProfiler profiler) {
+    this.profiler = profiler;
+    attachmentPointOrder = null;
+  }
+
+  /**
+   * Combines every attachment point into a single alternation, so a line which none of them match is rejected with one
+   * evaluation instead of one per attachment point.
+   */
+  private void compileAttachmentPoints() {
+    attachmentPointOrder = attachmentPoints.toArray(new PatchAttachPoint[0]);
+    attachmentPointFilter = null;
+    attachPointStats = null;
+    if (profiler != null) {
+      attachPointStats = new PatchProfiler.Stats[attachmentPointOrder.length];
+      for (int i = 0; i < attachmentPointOrder.length; i++) {
+        attachPointStats[i] = profiler.getStats(attachmentPointOrder[i]);
+        attachmentPointOrder[i].setStats(attachPointStats[i]);
+      }
+    }
+    if (attachmentPointOrder.length < 2) {
+      return;
+    }
+
+    final StringJoiner joiner = new StringJoiner("|");
+    for (PatchAttachPoint attachPoint : attachmentPointOrder) {
+      if (UNCOMBINABLE.matcher(attachPoint.getAttachmentPoint()).find()) {
+        return;
+      }
+      joiner.add("(?:" + attachPoint.getAttachmentPoint() + ")");
+    }
+    try {
+      attachmentPointFilter = Pattern.compile(joiner.toString());
+    } catch (PatternSyntaxException e) {
+      // Every pattern compiles on its own, so they are matched one by one instead.
+      attachmentPointFilter = null;
+    }
+  }
+
   protected final void addAttachmentPoint(PatchAttachPoint attachPoint) {
     attachmentPoints.add(attachPoint);
+    attachmentPointOrder = null;
   }
 
   protected final void addPatchedLine(String line) {
-    patchedFile.add(line);
+    try {
+      patchedFile.write(line);
+      patchedFile.newLine();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
@@ -104,4 +282,15 @@ public class Patch implements IApply {
   public boolean isFileNameTerm() {
     return fileNameTerm;
   }
+
+  /**
+   * @return The descriptors of the classes this patch targets, empty if the patch searches for its terms instead.
+   */
+  public List<String> getTargetClasses() {
+    return targetClasses;
+  }
+
+  public boolean isClassTargeted() {
+    return !targetClasses.isEmpty();
+  }
 }
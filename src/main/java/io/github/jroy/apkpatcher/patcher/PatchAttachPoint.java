@@ -3,13 +3,19 @@ package io.github.jroy.apkpatcher.patcher;
 import io.github.jroy.apkpatcher.util.Logger;
 import io.github.jroy.apkpatcher.util.SearchNextLineToken;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.regex.Pattern;
 
 public abstract class PatchAttachPoint {
   private final Patch patch;
   private final String attachmentPoint;
+  private final Pattern attachmentPattern;
   private final boolean addMatchedLine;
+  private final Map<String, Pattern> searchPatterns = new HashMap<>();
   private boolean applied = false;
+  private PatchProfiler.Stats stats;
 
   public PatchAttachPoint(Patch patch, String attachmentPoint) {
     this(patch, attachmentPoint, true);
@@ -18,6 +24,7 @@ public abstract class PatchAttachPoint {
   public PatchAttachPoint(Patch patch, String attachmentPoint, boolean addMatchedLine) {
     this.patch = patch;
     this.attachmentPoint = attachmentPoint;
+    this.attachmentPattern = Pattern.compile(attachmentPoint);
     this.addMatchedLine = addMatchedLine;
   }
 
@@ -32,9 +39,14 @@ public abstract class PatchAttachPoint {
   protected abstract boolean applyLine(String matchedLine, Scanner scanner);
 
   protected final SearchNextLineToken searchOrNextLine(Scanner scanner, String regex) {
+    final Pattern pattern = searchPatterns.computeIfAbsent(regex, Pattern::compile);
     while (scanner.hasNextLine()) {
       String line = scanner.nextLine();
-      if (line.matches(regex)) {
+      if (stats != null) {
+        stats.addLinesScanned(1);
+        stats.addRegexEvaluations(1);
+      }
+      if (pattern.matcher(line).matches()) {
         return new SearchNextLineToken(line);
       }
       patch.addPatchedLine(line);
@@ -43,6 +55,10 @@ public abstract class PatchAttachPoint {
     return null;
   }
 
+  void setStats(PatchProfiler.Stats stats) {
+    this.stats = stats;
+  }
+
   public Patch getPatch() {
     return this.patch;
   }
@@ -51,6 +67,14 @@ public abstract class PatchAttachPoint {
     return this.attachmentPoint;
   }
 
+  Pattern getAttachmentPattern() {
+    return this.attachmentPattern;
+  }
+
+  boolean isApplied() {
+    return this.applied;
+  }
+
   public boolean isAddMatchedLine() {
     return this.addMatchedLine;
   }
@@ -0,0 +1,168 @@
+package io.github.jroy.apkpatcher.patcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Applies several patches to a file in a single pass, instead of reading and rewriting the whole file once per patch.
+ * <p>
+ * The patches are chained as streaming stages: the file is read by the first patch, whose output is read line by line
+ * by the second patch, and so on, and the output of the last patch is written to the patched file. Every patch sees
+ * exactly the lines it would see if the patches were applied one after another, including the lines earlier patches
+ * read ahead, added or left as they are after failing, so the result is the same as applying them sequentially.
+ * <p>
+ * A stage only patches lines once the next stage asks for them, so all stages run on the calling thread and at most a
+ * few lines per stage are held in memory.
+ */
+public final class PatchComposer {
+  private PatchComposer() {
+  }
+
+  /**
+   * Streams the file through the attachment points of every patch into a temporary sibling file, which then atomically
+   * replaces the original file. The patches must not be applied anywhere else in the meantime.
+   *
+   * @return For every patch, in the order given, if all of its attachment points were applied.
+   */
+  public static boolean[] apply(File file, List<Patch> patches) {
+    return apply(file, patches, file.getAbsoluteFile().getParentFile().toPath());
+  }
+
+  /**
+   * Like {@link #apply(File, List)}, but creates the temporary file in the given directory. Use a directory outside of
+   * any tree which is searched while patching, on the same file store as the file so it can be moved atomically.
+   */
+  public static boolean[] apply(File file, List<Patch> patches, Path tmpDirectory) {
+    final Path path = file.toPath();
+    final boolean[] results = new boolean[patches.size()];
+    Path tmpPath = null;
+    try {
+      tmpPath = Files.createTempFile(tmpDirectory, "." + file.getName(), ".tmp");
+      try (Scanner fileScanner = new Scanner(path, StandardCharsets.UTF_8);
+           BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+        final List<Stage> stages = new ArrayList<>();
+        Scanner input = fileScanner;
+        for (Patch patch : patches.subList(0, Math.max(patches.size() - 1, 0))) {
+          final Stage stage = new Stage(patch, input);
+          stages.add(stage);
+          input = new Scanner(stage);
+        }
+        for (int i = 0; i < patches.size(); i++) {
+          patches.get(i).begin(i < stages.size() ? stages.get(i).writer : writer);
+        }
+        try {
+          final Patch last = patches.isEmpty() ? null : patches.get(patches.size() - 1);
+          while (input.hasNextLine()) {
+            final String line = input.nextLine();
+            if (last == null || !Boolean.TRUE.equals(last.offerLine(line, input))) {
+              // A failed attachment point leaves the line to be written as it is.
+              writer.write(line);
+              writer.newLine();
+            }
+          }
+          if (fileScanner.ioException() != null) {
+            throw fileScanner.ioException();
+          }
+        } finally {
+          for (int i = 0; i < patches.size(); i++) {
+            results[i] = patches.get(i).finish();
+          }
+        }
+      }
+
+      copyPermissions(path, tmpPath);
+      try {
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return results;
+    } catch (IOException | UncheckedIOException e) {
+      if (tmpPath != null) {
+        try {
+          Files.deleteIfExists(tmpPath);
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Temporary files are only readable by their owner, so the patched file gets the permissions of the original.
+   */
+  private static void copyPermissions(Path source, Path target) throws IOException {
+    try {
+      Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+    } catch (UnsupportedOperationException ignored) {
+      // Not a POSIX file system, the temporary file already has the default permissions.
+    }
+  }
+
+  /**
+   * The output of a patch, as read by the next patch. Scanner is final and reads ahead through whole buffers, so a patch
+   * can't be handed a Scanner over the previous patch's lines directly, instead the previous patch is driven from
+   * {@link #read(char[], int, int)} whenever the Scanner of the next patch needs more input.
+   */
+  private static final class Stage extends Reader {
+    private final Patch patch;
+    private final Scanner input;
+    private final StringWriter output = new StringWriter();
+    private final BufferedWriter writer = new BufferedWriter(output);
+    private int position;
+
+    private Stage(Patch patch, Scanner input) {
+      this.patch = patch;
+      this.input = input;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      final StringBuffer pending = output.getBuffer();
+      try {
+        writer.flush();
+        while (position == pending.length() && input.hasNextLine()) {
+          pending.setLength(0);
+          position = 0;
+          final String line = input.nextLine();
+          if (!Boolean.TRUE.equals(patch.offerLine(line, input))) {
+            writer.write(line);
+            writer.newLine();
+          }
+          writer.flush();
+        }
+      } catch (IOException e) {
+        // Scanner takes an IOException for the end of the input, which would silently truncate the file.
+        throw new UncheckedIOException(e);
+      }
+      if (input.ioException() != null) {
+        throw new UncheckedIOException(input.ioException());
+      }
+      if (position == pending.length()) {
+        return -1;
+      }
+      final int count = Math.min(length, pending.length() - position);
+      pending.getChars(position, position + count, buffer, offset);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+      input.close();
+    }
+  }
+}
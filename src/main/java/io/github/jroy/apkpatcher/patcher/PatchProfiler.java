@@ -0,0 +1,136 @@
+package io.github.jroy.apkpatcher.patcher;
+
+import io.github.jroy.apkpatcher.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in accounting of the work every {@link Patch} and {@link PatchAttachPoint} causes, to find the expensive one when
+ * a patch set gets slow.
+ * <p>
+ * The terms of all patches are searched for in a single pass over each file, so that pass isn't attributed to any
+ * patch. What is counted per patch is the files it was searched for in and the files it applied to. Each of those files
+ * is then read line by line while the attachment points' patterns are evaluated, and that work is counted per patch and
+ * per attachment point. A file is read and written once for all patches applying to it, so the time of a patch is only
+ * the time spent in its attachment points, not the file I/O. The patches of a file are chained, so when an attachment
+ * point reads ahead, its time includes patching those lines in the patches before it.
+ */
+public class PatchProfiler {
+  private final Map<Patch, Stats> patchStats = new ConcurrentHashMap<>();
+  private final Map<PatchAttachPoint, Stats> attachPointStats = new ConcurrentHashMap<>();
+
+  /**
+   * Starts profiling the given patches, patches other than {@link Patch}es are ignored.
+   */
+  public void attach(IApply[] patches) {
+    for (IApply apply : patches) {
+      if (apply instanceof Patch patch) {
+        patch.setProfiler(this);
+      }
+    }
+  }
+
+  /**
+   * @return The stats of the patch, created the first time they're asked for.
+   */
+  public Stats getStats(Patch patch) {
+    return patchStats.computeIfAbsent(patch, key -> new Stats(patch.getName()));
+  }
+
+  /**
+   * @return The stats of the attachment point, created the first time they're asked for.
+   */
+  public Stats getStats(PatchAttachPoint attachPoint) {
+    return attachPointStats.computeIfAbsent(attachPoint, key -> new Stats(attachPoint.getPatch().getName() + " `" + attachPoint.getAttachmentPoint() + "`"));
+  }
+
+  /**
+   * Logs the patches and attachment points sorted by the time spent in them, most expensive first.
+   */
+  public void printHotspots() {
+    printTable("Patch", patchStats.values());
+    printTable("Attachment point", attachPointStats.values());
+  }
+
+  private static void printTable(String title, Iterable<Stats> stats) {
+    final List<Stats> sorted = new ArrayList<>();
+    stats.forEach(sorted::add);
+    if (sorted.isEmpty()) {
+      return;
+    }
+    sorted.sort(Comparator.comparingLong(Stats::getNanos).reversed());
+
+    Logger.info(String.format(Locale.ROOT, "%10s %8s %10s %10s %8s  %s", "time (ms)", "files", "lines", "regex", "matches", title));
+    for (Stats stat : sorted) {
+      Logger.info(String.format(Locale.ROOT, "%10.1f %8d %10d %10d %8d  %s", stat.getNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1),
+          stat.getFilesExamined(), stat.getLinesScanned(), stat.getRegexEvaluations(), stat.getMatches(), stat.getName()));
+    }
+  }
+
+  /**
+   * The work counted for a single patch or attachment point, which may be updated from several threads.
+   */
+  public static final class Stats {
+    private final String name;
+    private final LongAdder filesExamined = new LongAdder();
+    private final LongAdder linesScanned = new LongAdder();
+    private final LongAdder regexEvaluations = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private Stats(String name) {
+      this.name = name;
+    }
+
+    public void addFileExamined() {
+      filesExamined.increment();
+    }
+
+    public void addLinesScanned(long lines) {
+      linesScanned.add(lines);
+    }
+
+    public void addRegexEvaluations(long evaluations) {
+      regexEvaluations.add(evaluations);
+    }
+
+    public void addMatch() {
+      matches.increment();
+    }
+
+    public void addNanos(long elapsed) {
+      nanos.add(elapsed);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getFilesExamined() {
+      return filesExamined.sum();
+    }
+
+    public long getLinesScanned() {
+      return linesScanned.sum();
+    }
+
+    public long getRegexEvaluations() {
+      return regexEvaluations.sum();
+    }
+
+    public long getMatches() {
+      return matches.sum();
+    }
+
+    public long getNanos() {
+      return nanos.sum();
+    }
+  }
+}
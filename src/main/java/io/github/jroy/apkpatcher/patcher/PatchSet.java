@@ -0,0 +1,15 @@
+package io.github.jroy.apkpatcher.patcher;
+
+/**
+ * A named set of patches, which the CLI finds through {@link java.util.ServiceLoader}.
+ * <p>
+ * Implementations are registered in {@code META-INF/services/io.github.jroy.apkpatcher.patcher.PatchSet}.
+ */
+public interface PatchSet {
+  String getName();
+
+  /**
+   * Patches keep state while they are applied, so every job gets a new set of them.
+   */
+  IApply[] createPatches();
+}
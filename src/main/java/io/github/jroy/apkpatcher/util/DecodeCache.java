@@ -0,0 +1,281 @@
+package io.github.jroy.apkpatcher.util;
+
+import brut.androlib.Androlib;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A local cache of decoded APKs keyed by the SHA-256 of the input APK and the apktool version which decoded it.
+ * <p>
+ * Entries are evicted least recently used first once the cache grows past its size limit. Smali files are hard linked
+ * in and out of the cache when possible, which is safe since patches always replace a smali file rather than writing
+ * into it. Every other file is copied.
+ * <p>
+ * A cache may be shared by jobs running at the same time. Trees are copied under a lock of their key only, so any
+ * number of jobs can restore the same entry at once, and entries which are being restored are never evicted.
+ */
+public class DecodeCache {
+  private static final String META_SUFFIX = ".meta";
+  private static final String TMP_SUFFIX = ".tmp-";
+  // Trees are copied in well under this, anything staged longer ago was left behind by a process which died.
+  private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+  private static final int HASH_BUFFER = 64 * 1024;
+
+  private final Path cacheDirectory;
+  private final long maxSize;
+  private final boolean linkSmali;
+  private final Map<String, ReadWriteLock> entryLocks = new ConcurrentHashMap<>();
+  private final Object evictionLock = new Object();
+
+  public DecodeCache(File cacheDirectory, long maxSize) {
+    this(cacheDirectory, maxSize, true);
+  }
+
+  /**
+   * @param maxSize   The maximum size of the cache in bytes.
+   * @param linkSmali If smali files should be hard linked instead of copied. Disable this when smali files in the
+   *                  output directory are edited in place by anything other than patches.
+   */
+  public DecodeCache(File cacheDirectory, long maxSize, boolean linkSmali) {
+    this.cacheDirectory = cacheDirectory.toPath();
+    this.maxSize = maxSize;
+    this.linkSmali = linkSmali;
+  }
+
+  public String key(File inputApk) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    try (FileChannel channel = FileChannel.open(inputApk.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER);
+      while (channel.read(buffer) != -1) {
+        digest.update(buffer.flip());
+        buffer.clear();
+      }
+    }
+    digest.update(("apktool-" + Androlib.getVersion()).getBytes(StandardCharsets.UTF_8));
+    final StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) {
+      key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Restores the decoded tree stored under the key into the output directory, replacing anything already there.
+   *
+   * @return true if the key was cached, false otherwise.
+   */
+  public boolean restore(String key, File outputDir) throws IOException {
+    final Path entry = cacheDirectory.resolve(key);
+    final Path meta = cacheDirectory.resolve(key + META_SUFFIX);
+    final Lock lock = getEntryLock(key).readLock();
+    lock.lock();
+    try {
+      if (!Files.isDirectory(entry) || !Files.isRegularFile(meta)) {
+        return false;
+      }
+
+      if (outputDir.exists()) {
+        Logger.warn("Deleting pre-existing output directory...");
+        FileUtils.deleteDirectory(outputDir);
+      }
+      copyTree(entry, outputDir.toPath());
+      Files.setLastModifiedTime(meta, FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores a freshly decoded tree under the key, then evicts the least recently used entries over the size limit.
+   */
+  public void store(String key, File outputDir) throws IOException {
+    Files.createDirectories(cacheDirectory);
+
+    final Path entry = cacheDirectory.resolve(key);
+    final Path meta = cacheDirectory.resolve(key + META_SUFFIX);
+    if (Files.isDirectory(entry) && Files.isRegularFile(meta)) {
+      return;
+    }
+
+    // The tree is copied without holding any lock, only moving it into place has to exclude readers.
+    final Path tmpEntry = cacheDirectory.resolve(key + TMP_SUFFIX + UUID.randomUUID());
+    try {
+      final long size = copyTree(outputDir.toPath(), tmpEntry);
+      final Lock lock = getEntryLock(key).writeLock();
+      lock.lock();
+      try {
+        if (Files.isDirectory(entry) && Files.isRegularFile(meta)) {
+          return;
+        }
+        FileUtils.deleteDirectory(entry.toFile());
+        Files.move(tmpEntry, entry, StandardCopyOption.ATOMIC_MOVE);
+        Files.writeString(meta, Long.toString(size), StandardCharsets.UTF_8);
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      FileUtils.deleteDirectory(tmpEntry.toFile());
+    }
+    synchronized (evictionLock) {
+      evict(key);
+    }
+  }
+
+  private ReadWriteLock getEntryLock(String key) {
+    return entryLocks.computeIfAbsent(key, k -> new ReentrantReadWriteLock());
+  }
+
+  private void evict(String keep) throws IOException {
+    deleteStaleEntries();
+
+    final List<Path> metas = new ArrayList<>();
+    long totalSize = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory, "*" + META_SUFFIX)) {
+      for (Path meta : stream) {
+        metas.add(meta);
+        totalSize += readSize(meta);
+      }
+    }
+
+    metas.sort(Comparator.comparing(DecodeCache::lastUsed));
+    for (Path meta : metas) {
+      if (totalSize <= maxSize) {
+        break;
+      }
+      final String name = meta.getFileName().toString();
+      final String key = name.substring(0, name.length() - META_SUFFIX.length());
+      if (key.equals(keep)) {
+        continue;
+      }
+
+      // An entry which is being restored is skipped, the next store evicts it instead.
+      final Lock lock = getEntryLock(key).writeLock();
+      if (!lock.tryLock()) {
+        continue;
+      }
+      try {
+        Logger.info("Evicting decoded APK " + key + " from cache...");
+        totalSize -= readSize(meta);
+        Files.delete(meta);
+        FileUtils.deleteDirectory(cacheDirectory.resolve(key).toFile());
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Deletes trees which were staged but never moved into place, and entries whose metadata was never written, when
+   * they're older than {@link #STALE_TMP_MILLIS}. Both are left behind when a process is killed while storing.
+   */
+  private void deleteStaleEntries() throws IOException {
+    final long staleBefore = System.currentTimeMillis() - STALE_TMP_MILLIS;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory, Files::isDirectory)) {
+      for (Path directory : stream) {
+        final String name = directory.getFileName().toString();
+        final boolean staged = name.contains(TMP_SUFFIX);
+        if (!staged && Files.exists(cacheDirectory.resolve(name + META_SUFFIX))) {
+          continue;
+        }
+        if (Files.getLastModifiedTime(directory).toMillis() >= staleBefore) {
+          continue;
+        }
+        if (!staged) {
+          // Stores move the tree into place and write its metadata under the write lock.
+          final Lock lock = getEntryLock(name).writeLock();
+          if (!lock.tryLock()) {
+            continue;
+          }
+          try {
+            if (!Files.exists(cacheDirectory.resolve(name + META_SUFFIX))) {
+              Logger.warn("Deleting incomplete decoded APK " + name + " from cache...");
+              FileUtils.deleteDirectory(directory.toFile());
+            }
+          } finally {
+            lock.unlock();
+          }
+          continue;
+        }
+        Logger.warn("Deleting stale decoded APK copy " + name + " from cache...");
+        FileUtils.deleteDirectory(directory.toFile());
+      }
+    }
+  }
+
+  private long copyTree(Path source, Path target) throws IOException {
+    final long[] size = {0};
+    Files.walkFileTree(source, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(target.resolve(source.relativize(dir)));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        final Path relative = source.relativize(file);
+        final Path destination = target.resolve(relative);
+        size[0] += attrs.size();
+        if (linkSmali && relative.getNameCount() > 1 && relative.getName(0).toString().startsWith("smali")) {
+          try {
+            Files.createLink(destination, file);
+            return FileVisitResult.CONTINUE;
+          } catch (IOException | UnsupportedOperationException ignored) {
+            // Different file stores or no hard link support, fall back to copying.
+          }
+        }
+        Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return size[0];
+  }
+
+  private static long readSize(Path meta) {
+    try {
+      return Long.parseLong(Files.readString(meta, StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static FileTime lastUsed(Path meta) {
+    try {
+      return Files.getLastModifiedTime(meta);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+}
@@ -4,35 +4,98 @@ import io.github.jroy.apkpatcher.ApkPatcherException;
 import io.github.jroy.apkpatcher.patcher.FileInjector;
 import io.github.jroy.apkpatcher.patcher.IApply;
 import io.github.jroy.apkpatcher.patcher.Patch;
+import io.github.jroy.apkpatcher.patcher.PatchComposer;
+import io.github.jroy.apkpatcher.patcher.PatchProfiler;
+import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 public class FileSearcher {
   private final File outputDirectory;
   private final String prioritySearch;
   private final boolean applyPatches;
   private final IApply[] patches;
-  private final List<IApply> appliedPatches = new ArrayList<>();
-  private final HashSet<Path> exhaustiveSearches = new HashSet<>();
-  private final List<File> smaliToMove = new ArrayList<>();
+  private final int searchThreads;
+  private final Set<IApply> appliedPatches = ConcurrentHashMap.newKeySet();
+  private final Set<Path> exhaustiveSearches = ConcurrentHashMap.newKeySet();
+  private final Set<File> smaliToMove = ConcurrentHashMap.newKeySet();
+  private final Set<String> modifiedSmaliFolders = ConcurrentHashMap.newKeySet();
+  private final List<Patch> targetedPatches = new ArrayList<>();
+  private final TermMatcher termMatcher;
+  private final Path tmpDirectory;
   private File lastSmaliFolder;
+  private int unresolvedTargets;
+  private ForkJoinPool searchPool;
+  private PhaseMetrics metrics;
+  private PatchProfiler profiler;
 
   public FileSearcher(File outputDirectory, String prioritySearch, boolean applyPatches, IApply[] patches) {
+    this(outputDirectory, prioritySearch, applyPatches, patches, 1);
+  }
+
+  /**
+   * @param searchThreads The amount of threads used to crawl the smali folders, a value above 1 splits the crawl
+   *                      across a work-stealing pool.
+   */
+  public FileSearcher(File outputDirectory, String prioritySearch, boolean applyPatches, IApply[] patches, int searchThreads) {
     this.outputDirectory = outputDirectory;
     this.prioritySearch = prioritySearch;
     this.applyPatches = applyPatches;
     this.patches = patches;
+    this.searchThreads = searchThreads;
+    // Patched files are written next to apktool's own build files, so the crawl never comes across them.
+    this.tmpDirectory = outputDirectory.toPath().resolve("build").resolve("tmp");
+
+    final List<Patch> searchPatches = new ArrayList<>();
+    for (IApply type : patches) {
+      if (type instanceof FileInjector) {
+        continue;
+      }
+      final Patch patch = (Patch) type;
+      if (patch.isClassTargeted()) {
+        targetedPatches.add(patch);
+      } else {
+        searchPatches.add(patch);
+      }
+    }
+    this.termMatcher = new TermMatcher(searchPatches);
+    setMetrics(new PhaseMetrics(outputDirectory.getName(), PatchMetrics.Phase.SEARCH.getName()));
+  }
+
+  /**
+   * Sets the metrics the files scanned and patched, and the work of the search threads, are counted in.
+   */
+  public void setMetrics(PhaseMetrics metrics) {
+    this.metrics = metrics;
+    termMatcher.setMetrics(metrics);
+  }
+
+  /**
+   * Sets the profiler the work of every patch is counted in, none by default.
+   */
+  public void setProfiler(PatchProfiler profiler) {
+    this.profiler = profiler;
+    profiler.attach(patches);
+    termMatcher.setProfiler(profiler);
   }
 
   public void searchAndApply() throws IOException, ApkPatcherException {
@@ -61,32 +124,86 @@ public class FileSearcher {
     }
 
     executeFileInjectors();
-    crawlSmaliFolders();
+    if (applyPatches) {
+      Files.createDirectories(tmpDirectory);
+    }
+    try {
+      applyTargetedPatches();
+      if (isComplete()) {
+        Logger.info("Skipping smali crawl due to all patches being completed...");
+      } else {
+        crawl();
+      }
+    } finally {
+      if (applyPatches) {
+        FileUtils.deleteDirectory(tmpDirectory.toFile());
+      }
+    }
 
     if (!smaliToMove.isEmpty()) {
       Logger.info("Moving " + smaliToMove.size() + " files to '" + lastSmaliFolder.getName() + "'...");
       for (File file : smaliToMove) {
-        String filePath = file.getPath();
-        filePath = filePath.substring(filePath.indexOf(File.separator) + 1);
-        filePath = filePath.substring(filePath.indexOf(File.separator) + 1);
-
-        final File newLocation = new File(lastSmaliFolder, filePath);
+        // The path of the class inside its smali folder, which works for any output directory.
+        final Path classPath = outputDirectory.toPath().relativize(file.toPath());
+        final File newLocation = new File(lastSmaliFolder, classPath.subpath(1, classPath.getNameCount()).toString());
 
-        if (!newLocation.mkdirs()) {
+        final File parent = newLocation.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
           Logger.error("Failed to move smali to location '" + newLocation.getPath() + "'!");
           continue;
         }
 
         Files.move(file.toPath(), newLocation.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        modifiedSmaliFolders.add(lastSmaliFolder.getName());
+      }
+    }
+  }
+
+  private void crawl() throws IOException, ApkPatcherException {
+    if (searchThreads > 1) {
+      searchPool = new ForkJoinPool(searchThreads, MeteredWorkerThread::new, null, false);
+    }
+    try {
+      crawlSmaliFolders();
+    } finally {
+      if (searchPool != null) {
+        searchPool.shutdown();
+        awaitSearchPool();
+        searchPool = null;
+      }
+    }
+  }
+
+  /**
+   * Waits for the search threads to end, so their usage is counted before the search phase is over.
+   */
+  private void awaitSearchPool() {
+    try {
+      if (!searchPool.awaitTermination(10, TimeUnit.SECONDS)) {
+        Logger.warn("Search threads are still running after the search finished!");
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
+  /**
+   * @return The names of the smali folders which had files patched, injected into or moved into them.
+   */
+  public Set<String> getModifiedSmaliFolders() {
+    return modifiedSmaliFolders;
+  }
+
+  private String getSmaliFolder(Path file) {
+    return outputDirectory.toPath().relativize(file).getName(0).toString();
+  }
+
   private void executeFileInjectors() {
     for (IApply type : patches) {
       if (type instanceof FileInjector) {
         if (type.apply(lastSmaliFolder)) {
           Logger.info("Successfully Executed Injector: " + type.getName());
+          modifiedSmaliFolders.add(lastSmaliFolder.getName());
           appliedPatches.add(type);
           continue;
         }
@@ -95,6 +212,53 @@ public class FileSearcher {
     }
   }
 
+  /**
+   * Resolves the target classes of every class targeted patch through a {@link SmaliClassIndex}, and applies the patches
+   * to them without searching any files. A class is patched by all patches targeting it at once.
+   */
+  private void applyTargetedPatches() {
+    if (targetedPatches.isEmpty()) {
+      return;
+    }
+
+    final SmaliClassIndex classIndex = new SmaliClassIndex(outputDirectory);
+    final Map<Path, List<Patch>> targets = new LinkedHashMap<>();
+    for (Patch patch : targetedPatches) {
+      for (String descriptor : patch.getTargetClasses()) {
+        final Path file = classIndex.resolve(descriptor);
+        if (file == null) {
+          Logger.error("Could not find target class " + descriptor + " for patch " + patch.getName());
+          continue;
+        }
+        if (profiler != null) {
+          final PatchProfiler.Stats stats = profiler.getStats(patch);
+          stats.addFileExamined();
+          stats.addMatch();
+        }
+        final List<Patch> filePatches = targets.computeIfAbsent(file, f -> new ArrayList<>());
+        if (!filePatches.contains(patch)) {
+          filePatches.add(patch);
+        }
+      }
+    }
+
+    for (Map.Entry<Path, List<Patch>> target : targets.entrySet()) {
+      if (!applyPatches) {
+        for (Patch patch : target.getValue()) {
+          Logger.info("Found target class " + target.getKey().getFileName().toString() + " for patch " + patch.getName());
+        }
+        continue;
+      }
+      applyPatches(target.getKey(), target.getValue(), "Found target class", 0);
+    }
+
+    for (Patch patch : targetedPatches) {
+      if (!appliedPatches.contains(patch)) {
+        unresolvedTargets++;
+      }
+    }
+  }
+
   private void crawlSmaliFolders() throws IOException, ApkPatcherException {
     final File[] smaliFolders = outputDirectory.listFiles(file -> file.getName().contains("smali"));
     if (smaliFolders == null) {
@@ -111,9 +275,10 @@ public class FileSearcher {
   }
 
   private void crawlSmaliFolder(Path directory) throws IOException {
+    final List<Path> parallelSearches = new ArrayList<>();
     try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
       for (Path path : directoryStream) {
-        if (appliedPatches.size() == patches.length) {
+        if (isComplete()) {
           Logger.info("Skipping smali crawl due to all patches being completed...");
           return;
         }
@@ -123,29 +288,66 @@ public class FileSearcher {
             exhaustiveSearches.add(path);
             continue;
           }
+          if (searchPool != null) {
+            parallelSearches.add(path);
+            continue;
+          }
           searchDirectory(path);
         }
       }
     }
+    searchDirectories(parallelSearches);
   }
 
   private void validateExhaustiveSearch() throws IOException {
-    if (appliedPatches.size() == patches.length) {
+    if (isComplete()) {
       exhaustiveSearches.clear();
       return;
     }
 
     Logger.info("Preforming exhaustive search...");
+    if (searchPool != null) {
+      searchDirectories(exhaustiveSearches);
+      return;
+    }
     for (Path path : exhaustiveSearches) {
       searchDirectory(path);
     }
   }
 
+  private void searchDirectories(Collection<Path> directories) throws IOException {
+    if (directories.isEmpty()) {
+      return;
+    }
+
+    final List<SearchTask> tasks = new ArrayList<>();
+    for (Path directory : directories) {
+      tasks.add(new SearchTask(directory));
+    }
+    try {
+      searchPool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * @return If every patch the crawl could still apply has been applied, class targeted patches are never crawled for.
+   */
+  private boolean isComplete() {
+    return appliedPatches.size() + unresolvedTargets == patches.length;
+  }
+
   private void searchDirectory(Path directory) throws IOException {
     try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
 
       for (Path path : directoryStream) {
-        if (appliedPatches.size() == patches.length) {
+        if (isComplete()) {
           return;
         }
         if (Files.isDirectory(path)) {
@@ -154,59 +356,121 @@ public class FileSearcher {
         }
 
         if (Files.isRegularFile(path) && Files.isReadable(path)) {
-          for (IApply type : patches) {
-            if (appliedPatches.contains(type) || type instanceof FileInjector) {
-              continue;
-            }
-            if (searchFile(path, (Patch) type)) {
-              break;
-            }
-          }
+          searchFile(path);
         }
       }
     }
   }
 
-  private boolean searchFile(Path file, Patch patch) throws IOException {
-    List<String> list = new ArrayList<>(Arrays.asList(patch.getTerms()));
+  private void searchFile(Path file) throws IOException {
+    // Hidden files aren't classes, they're left behind by editors or by anything else writing into the tree.
+    if (file.getFileName().toString().startsWith(".")) {
+      return;
+    }
+    metrics.addFileScanned();
+    final List<Patch> matched = termMatcher.match(file, appliedPatches);
+    if (matched.isEmpty()) {
+      return;
+    }
+    if (!applyPatches) {
+      for (Patch patch : matched) {
+        Logger.info("Found term occurrences in " + file.getFileName().toString() + " for patch " + patch.getName());
+      }
+      return;
+    }
+    applyPatches(file, matched, "Found term occurrences in", 0);
+  }
 
-    if (patch.isFileNameTerm()) {
-      list.removeIf(term -> file.getFileName().toString().contains(term));
-    } else {
-      try (Scanner scanner = new Scanner(file)) {
-        scanner:
-        while (scanner.hasNextLine()) {
-          String line = scanner.nextLine();
-          for (String curTerm : list) {
-            if (line.contains(curTerm)) {
-              list.remove(curTerm);
-              if (list.isEmpty()) {
-                break scanner;
-              }
-              break;
-            }
-          }
-        }
+  /**
+   * Patches keep state while applying, so only one file may be patched by a patch at a time. The matched patches are
+   * locked one after another, always in the order they were declared in, before the file is patched by all of them.
+   */
+  private void applyPatches(Path file, List<Patch> matched, String reason, int locked) {
+    if (locked < matched.size()) {
+      synchronized (matched.get(locked)) {
+        applyPatches(file, matched, reason, locked + 1);
       }
+      return;
     }
 
-    if (list.isEmpty()) {
-      Logger.info("Found term occurrences in " + file.getFileName().toString() + " for patch " + patch.getName());
-      if (applyPatches) {
-        final File patchFile = file.toFile();
-        if (patch.apply(patchFile)) {
-          Logger.info("Successfully Applied Patch: " + patch.getName());
-          appliedPatches.add(patch);
+    final List<Patch> pending = new ArrayList<>(matched.size());
+    for (Patch patch : matched) {
+      if (!appliedPatches.contains(patch)) {
+        Logger.info(reason + " " + file.getFileName().toString() + " for patch " + patch.getName());
+        pending.add(patch);
+      }
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    final File patchFile = file.toFile();
+    modifiedSmaliFolders.add(getSmaliFolder(file));
+    metrics.addFilePatched();
+    final boolean[] results = PatchComposer.apply(patchFile, pending, tmpDirectory);
+    for (int i = 0; i < pending.size(); i++) {
+      final Patch patch = pending.get(i);
+      if (!results[i]) {
+        Logger.error("Failed to apply patch: " + patch.getName());
+        continue;
+      }
+      Logger.info("Successfully Applied Patch: " + patch.getName());
+      appliedPatches.add(patch);
+
+      if (patch.useNewDex()) {
+        smaliToMove.add(patchFile);
+      }
+    }
+  }
+
+  private class SearchTask extends RecursiveAction {
+    private final Path directory;
+
+    private SearchTask(Path directory) {
+      this.directory = directory;
+    }
 
-          if (patch.useNewDex()) {
-            smaliToMove.add(patchFile);
+    @Override
+    protected void compute() {
+      final List<SearchTask> subTasks = new ArrayList<>();
+      try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+        for (Path path : directoryStream) {
+          if (isComplete()) {
+            break;
+          }
+          if (Files.isDirectory(path)) {
+            final SearchTask subTask = new SearchTask(path);
+            subTask.fork();
+            subTasks.add(subTask);
+            continue;
+          }
+
+          if (Files.isRegularFile(path) && Files.isReadable(path)) {
+            searchFile(path);
           }
-          return true;
         }
-        Logger.error("Failed to apply patch: " + patch.getName());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      return true;
+
+      for (SearchTask subTask : subTasks) {
+        subTask.join();
+      }
+    }
+  }
+
+  /**
+   * A search thread which adds its CPU time and allocations to the search metrics when the pool shuts it down.
+   */
+  private class MeteredWorkerThread extends ForkJoinWorkerThread {
+    private MeteredWorkerThread(ForkJoinPool pool) {
+      super(pool);
+    }
+
+    @Override
+    protected void onTermination(Throwable exception) {
+      metrics.addCurrentThreadUsage();
+      super.onTermination(exception);
     }
-    return false;
   }
 }
@@ -0,0 +1,123 @@
+package io.github.jroy.apkpatcher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Seeds apktool's build directory with the untouched parts of the input APK.
+ * <p>
+ * apktool only smalis a folder or runs aapt when its sources are newer than what's already in {@code build/apk/}, so
+ * copying the original {@code classesN.dex} of every smali folder that wasn't modified, along with the compiled
+ * resources, limits the build to the dex files which actually changed.
+ */
+public class IncrementalBuild {
+  private static final String BUILD_DIRECTORY = "build/apk";
+  private static final String[] RESOURCE_FILES = {"resources.arsc", "AndroidManifest.xml"};
+  private static final String RESOURCE_FOLDER = "res/";
+
+  private final File inputApk;
+  private final File outputDir;
+
+  public IncrementalBuild(File inputApk, File outputDir) {
+    this.inputApk = inputApk;
+    this.outputDir = outputDir;
+  }
+
+  /**
+   * @param modifiedSmaliFolders The smali folders which have to be re-assembled.
+   */
+  public void seed(Set<String> modifiedSmaliFolders) throws IOException {
+    final Path buildDir = outputDir.toPath().resolve(BUILD_DIRECTORY);
+    Files.createDirectories(buildDir);
+
+    final File[] smaliFolders = outputDir.listFiles(file -> file.isDirectory() && (file.getName().equals("smali") || file.getName().startsWith("smali_")));
+    if (smaliFolders == null) {
+      return;
+    }
+
+    final List<Path> seeded = new ArrayList<>();
+    int reusedDex = 0;
+    try (ZipFile zipFile = new ZipFile(inputApk)) {
+      for (File smaliFolder : smaliFolders) {
+        final String dexName = getDexName(smaliFolder.getName());
+        final Path target = buildDir.resolve(dexName);
+        final ZipEntry dexEntry = zipFile.getEntry(dexName);
+
+        if (modifiedSmaliFolders.contains(smaliFolder.getName()) || dexEntry == null) {
+          Files.deleteIfExists(target);
+          continue;
+        }
+        extract(zipFile, dexEntry, target);
+        seeded.add(target);
+        reusedDex++;
+      }
+
+      // Resources are only compiled by apktool when they were decoded, a raw resources.arsc is always copied as is.
+      final boolean reuseResources = new File(outputDir, "res").isDirectory() && !new File(outputDir, "resources.arsc").exists();
+      if (reuseResources) {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          final ZipEntry entry = entries.nextElement();
+          if (entry.isDirectory() || !isResource(entry.getName())) {
+            continue;
+          }
+          final Path target = buildDir.resolve(entry.getName()).normalize();
+          if (!target.startsWith(buildDir)) {
+            continue;
+          }
+          Files.createDirectories(target.getParent());
+          extract(zipFile, entry, target);
+          seeded.add(target);
+        }
+      }
+
+      // The seeded files have to be newer than the decoded sources for apktool to skip them.
+      final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+      for (Path path : seeded) {
+        Files.setLastModifiedTime(path, now);
+      }
+
+      Logger.info("Reusing " + reusedDex + " unchanged dex files" + (reuseResources ? " and resources" : "") + " from the input APK...");
+    }
+  }
+
+  private static void extract(ZipFile zipFile, ZipEntry entry, Path target) throws IOException {
+    try (InputStream in = zipFile.getInputStream(entry)) {
+      Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static boolean isResource(String name) {
+    if (name.startsWith(RESOURCE_FOLDER)) {
+      return true;
+    }
+    for (String resourceFile : RESOURCE_FILES) {
+      if (resourceFile.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Maps a smali folder to the dex file apktool assembles it into, {@code smali} to {@code classes.dex} and
+   * {@code smali_classes2} to {@code classes2.dex}.
+   */
+  private static String getDexName(String smaliFolder) {
+    if (smaliFolder.equals("smali")) {
+      return "classes.dex";
+    }
+    return smaliFolder.substring("smali_".length()) + ".dex";
+  }
+}
@@ -1,6 +1,13 @@
 package io.github.jroy.apkpatcher.util;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
 public class Logger {
+  private static final InheritableThreadLocal<String> TAG = new InheritableThreadLocal<>();
+  private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
   public static void info(String message) {
     log("[INFO] " + message);
   }
@@ -13,7 +20,49 @@ public class Logger {
     log("[ERROR] " + message);
   }
 
+  /**
+   * Tags every message logged from the current thread, and threads it starts, so the output of jobs running side by
+   * side can be told apart.
+   *
+   * @param tag The tag, or null to remove it.
+   */
+  public static void setTag(String tag) {
+    if (tag == null) {
+      TAG.remove();
+    } else {
+      TAG.set(tag);
+    }
+  }
+
+  /**
+   * Adds a listener which receives every logged line, from any thread, after it was printed.
+   */
+  public static void addListener(Consumer<String> listener) {
+    LISTENERS.add(new Listener(null, listener));
+  }
+
+  /**
+   * Adds a listener which only receives the lines logged under the tag, see {@link #setTag(String)}.
+   */
+  public static void addListener(String tag, Consumer<String> listener) {
+    LISTENERS.add(new Listener(tag, listener));
+  }
+
+  public static void removeListener(Consumer<String> listener) {
+    LISTENERS.removeIf(registered -> registered.consumer() == listener);
+  }
+
   private static void log(String message) {
-    System.out.println("[ApkPatcher] " + message);
+    final String tag = TAG.get();
+    final String line = "[ApkPatcher] " + (tag != null ? "[" + tag + "] " : "") + message;
+    System.out.println(line);
+    for (Listener listener : LISTENERS) {
+      if (listener.tag() == null || listener.tag().equals(tag)) {
+        listener.consumer().accept(line);
+      }
+    }
+  }
+
+  private record Listener(String tag, Consumer<String> consumer) {
   }
 }
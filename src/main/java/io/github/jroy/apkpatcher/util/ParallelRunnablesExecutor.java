@@ -0,0 +1,89 @@
+package io.github.jroy.apkpatcher.util;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets apksig compute the 1 MB chunk digests of the v2 and v3 signature schemes on several threads.
+ * <p>
+ * apksig hands out runnables which pull chunks from a shared queue until none are left, so running one per thread
+ * spreads the digests across them. The calling thread runs one as well. The threads are kept until the executor is
+ * closed, so every signature scheme signed with it reuses them.
+ */
+public class ParallelRunnablesExecutor implements RunnablesExecutor, AutoCloseable {
+  private final int threads;
+  private final ExecutorService executor;
+
+  public ParallelRunnablesExecutor(int threads) {
+    this(threads, null);
+  }
+
+  /**
+   * @param metrics The metrics the work of the digesting threads is counted in, or null.
+   */
+  public ParallelRunnablesExecutor(int threads, PhaseMetrics metrics) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.threads = threads;
+    this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1, runnable -> {
+      final Thread thread = new Thread(metrics != null ? metrics.metered(runnable) : runnable, "ApkPatcher-Digest");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void execute(RunnablesProvider provider) {
+    if (executor == null) {
+      provider.createRunnable().run();
+      return;
+    }
+
+    final List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (int i = 1; i < threads; i++) {
+        futures.add(executor.submit(provider.createRunnable()));
+      }
+      provider.createRunnable().run();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while computing digests", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IllegalStateException("Failed to compute digests", e.getCause());
+    } finally {
+      // Don't leave runnables of a failed call to race the next one.
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    try {
+      // The threads count their work when they end.
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
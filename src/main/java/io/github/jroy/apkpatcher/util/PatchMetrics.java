@@ -0,0 +1,95 @@
+package io.github.jroy.apkpatcher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@link PhaseMetrics} of every phase of patching one APK, available from {@code ApkPatcher#getMetrics()} and
+ * written as a JSON report on request.
+ */
+public class PatchMetrics {
+  private final String apk;
+  private final Map<Phase, PhaseMetrics> phases = new EnumMap<>(Phase.class);
+
+  public PatchMetrics(String apk) {
+    this.apk = apk;
+    for (Phase phase : Phase.values()) {
+      phases.put(phase, new PhaseMetrics(apk, phase.getName()));
+    }
+  }
+
+  public PhaseMetrics get(Phase phase) {
+    return phases.get(phase);
+  }
+
+  public String getApk() {
+    return apk;
+  }
+
+  public String toJson() {
+    final StringBuilder json = new StringBuilder();
+    json.append("{\n  \"apk\": ").append(quote(apk)).append(",\n  \"phases\": {");
+    boolean first = true;
+    for (PhaseMetrics metrics : phases.values()) {
+      json.append(first ? "\n" : ",\n");
+      first = false;
+      json.append("    ").append(quote(metrics.getPhase())).append(": {")
+          .append("\"wallNanos\": ").append(metrics.getWallNanos())
+          .append(", \"cpuNanos\": ").append(metrics.getCpuNanos())
+          .append(", \"allocatedBytes\": ").append(metrics.getAllocatedBytes())
+          .append(", \"bytesRead\": ").append(metrics.getBytesRead())
+          .append(", \"bytesWritten\": ").append(metrics.getBytesWritten())
+          .append(", \"filesScanned\": ").append(metrics.getFilesScanned())
+          .append(", \"filesPatched\": ").append(metrics.getFilesPatched())
+          .append('}');
+    }
+    return json.append("\n  }\n}\n").toString();
+  }
+
+  public void writeJson(File file) throws IOException {
+    Files.writeString(file.toPath(), toJson(), StandardCharsets.UTF_8);
+  }
+
+  private static String quote(String value) {
+    final StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"' -> quoted.append("\\\"");
+        case '\\' -> quoted.append("\\\\");
+        default -> {
+          if (c < 0x20) {
+            quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+          } else {
+            quoted.append(c);
+          }
+        }
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /**
+   * Aligning and signing happen in a single pass over the APK, so they're measured as one phase.
+   */
+  public enum Phase {
+    DECODE("decode"),
+    SEARCH("search"),
+    BUILD("build"),
+    ALIGN_AND_SIGN("alignAndSign");
+
+    private final String name;
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
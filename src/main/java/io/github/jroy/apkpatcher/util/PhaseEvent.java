@@ -0,0 +1,46 @@
+package io.github.jroy.apkpatcher.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event emitted for every phase an APK goes through, see {@link PhaseMetrics}.
+ */
+@Name("io.github.jroy.apkpatcher.Phase")
+@Label("ApkPatcher Phase")
+@Category("ApkPatcher")
+@Description("A phase of patching an APK, such as decoding or building it")
+class PhaseEvent extends Event {
+  @Label("APK")
+  String apk;
+
+  @Label("Phase")
+  String phase;
+
+  @Label("CPU Time")
+  @Timespan
+  long cpuTime;
+
+  @Label("Allocated")
+  @DataAmount
+  long allocatedBytes;
+
+  @Label("Bytes Read")
+  @DataAmount
+  long bytesRead;
+
+  @Label("Bytes Written")
+  @DataAmount
+  long bytesWritten;
+
+  @Label("Files Scanned")
+  long filesScanned;
+
+  @Label("Files Patched")
+  long filesPatched;
+}
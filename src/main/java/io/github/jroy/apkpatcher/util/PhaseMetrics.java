@@ -0,0 +1,169 @@
+package io.github.jroy.apkpatcher.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The time, CPU, allocations and I/O spent in one phase of patching an APK.
+ * <p>
+ * The thread running the phase measures itself with a {@link Span}, threads the phase starts report their usage with
+ * {@link #metered(Runnable)} when they end. Counters can be updated from any thread.
+ */
+public class PhaseMetrics {
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private final String apk;
+  private final String phase;
+  private final LongAdder wallNanos = new LongAdder();
+  private final LongAdder cpuNanos = new LongAdder();
+  private final LongAdder allocatedBytes = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder filesScanned = new LongAdder();
+  private final LongAdder filesPatched = new LongAdder();
+
+  /**
+   * @param apk   The name of the APK being patched, for the JFR events.
+   * @param phase The name of the phase.
+   */
+  public PhaseMetrics(String apk, String phase) {
+    this.apk = apk;
+    this.phase = phase;
+  }
+
+  /**
+   * Starts measuring the current thread until the span is closed.
+   */
+  public Span start() {
+    return new Span();
+  }
+
+  /**
+   * Wraps the body of a worker thread so the CPU time and allocations of the whole thread are added when it ends.
+   */
+  public Runnable metered(Runnable threadBody) {
+    return () -> {
+      try {
+        threadBody.run();
+      } finally {
+        addCurrentThreadUsage();
+      }
+    };
+  }
+
+  /**
+   * Adds the CPU time and allocations of the current thread over its whole life, for worker threads which only ever
+   * worked on this phase.
+   */
+  public void addCurrentThreadUsage() {
+    cpuNanos.add(currentThreadCpuNanos());
+    allocatedBytes.add(currentThreadAllocatedBytes());
+  }
+
+  public void addBytesRead(long bytes) {
+    bytesRead.add(bytes);
+  }
+
+  public void addBytesWritten(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  public void addFileScanned() {
+    filesScanned.increment();
+  }
+
+  public void addFilePatched() {
+    filesPatched.increment();
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public long getWallNanos() {
+    return wallNanos.sum();
+  }
+
+  public long getCpuNanos() {
+    return cpuNanos.sum();
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes.sum();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  public long getFilesScanned() {
+    return filesScanned.sum();
+  }
+
+  public long getFilesPatched() {
+    return filesPatched.sum();
+  }
+
+  @Override
+  public String toString() {
+    return phase + " took " + TimeUnit.NANOSECONDS.toMillis(getWallNanos()) + "ms (" + TimeUnit.NANOSECONDS.toMillis(getCpuNanos()) + "ms CPU)";
+  }
+
+  private static long currentThreadCpuNanos() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? Math.max(0, THREADS.getCurrentThreadCpuTime()) : 0;
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemorySupported()) {
+      return Math.max(0, threads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+    return 0;
+  }
+
+  /**
+   * Measures the thread which started it, and emits a {@link PhaseEvent} with everything the phase did in the meantime
+   * when it's closed.
+   */
+  public final class Span implements AutoCloseable {
+    private final PhaseEvent event = new PhaseEvent();
+    private final long start = System.nanoTime();
+    private final long startCpu = currentThreadCpuNanos();
+    private final long startAllocated = currentThreadAllocatedBytes();
+    private final long startCpuTotal = cpuNanos.sum();
+    private final long startAllocatedTotal = allocatedBytes.sum();
+    private final long startBytesRead = bytesRead.sum();
+    private final long startBytesWritten = bytesWritten.sum();
+    private final long startFilesScanned = filesScanned.sum();
+    private final long startFilesPatched = filesPatched.sum();
+
+    private Span() {
+      event.begin();
+    }
+
+    @Override
+    public void close() {
+      wallNanos.add(System.nanoTime() - start);
+      cpuNanos.add(currentThreadCpuNanos() - startCpu);
+      allocatedBytes.add(currentThreadAllocatedBytes() - startAllocated);
+
+      event.end();
+      if (event.shouldCommit()) {
+        event.apk = apk;
+        event.phase = phase;
+        event.cpuTime = cpuNanos.sum() - startCpuTotal;
+        event.allocatedBytes = allocatedBytes.sum() - startAllocatedTotal;
+        event.bytesRead = bytesRead.sum() - startBytesRead;
+        event.bytesWritten = bytesWritten.sum() - startBytesWritten;
+        event.filesScanned = filesScanned.sum() - startFilesScanned;
+        event.filesPatched = filesPatched.sum() - startFilesPatched;
+        event.commit();
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package io.github.jroy.apkpatcher.util;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The APK signature schemes an APK can be signed with.
+ * <p>
+ * v1 signs every entry as a JAR and is only needed below Android 7.0 (SDK 24). v2 and v3 sign the APK as a whole, v3
+ * adds key rotation. v4 is written next to the APK as a {@code .idsig} file for incremental installs and needs v2 or
+ * v3.
+ */
+public enum SignatureScheme {
+  V1,
+  V2,
+  V3,
+  V4;
+
+  /**
+   * The schemes APKs are signed with unless told otherwise.
+   */
+  public static final Set<SignatureScheme> DEFAULT = EnumSet.of(V1, V2, V3);
+
+  /**
+   * The first SDK which verifies v2 signatures, below it an APK only installs if it's signed with v1.
+   */
+  public static final int V2_MIN_SDK_VERSION = 24;
+
+  /**
+   * Parses a comma separated list of schemes such as {@code v2,v3}.
+   *
+   * @throws IllegalArgumentException If a scheme is unknown or the schemes can't be used together.
+   */
+  public static Set<SignatureScheme> parse(String schemes) {
+    final Set<SignatureScheme> parsed = EnumSet.noneOf(SignatureScheme.class);
+    for (String scheme : schemes.split(",")) {
+      try {
+        parsed.add(valueOf(scheme.trim().toUpperCase(Locale.ROOT)));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown signature scheme '" + scheme.trim() + "'");
+      }
+    }
+    validate(parsed);
+    return parsed;
+  }
+
+  /**
+   * @throws IllegalArgumentException If the schemes can't be used together.
+   */
+  public static void validate(Set<SignatureScheme> schemes) {
+    if (schemes.isEmpty()) {
+      throw new IllegalArgumentException("At least one signature scheme is needed");
+    }
+    if (schemes.contains(V4) && !schemes.contains(V2) && !schemes.contains(V3)) {
+      throw new IllegalArgumentException("The v4 signature scheme needs v2 or v3");
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package io.github.jroy.apkpatcher.util;
+
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksigner.PasswordRetriever;
+import com.android.apksigner.SignerParams;
+import io.github.jroy.apkpatcher.ApkPatcherException;
+
+import java.io.File;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A key and certificate chain loaded from a keystore once and used to sign any number of APKs.
+ * <p>
+ * Decrypting a keystore is slow, so batches and the daemon load a profile up front and share it between their jobs.
+ * Profiles are immutable and safe to use from many threads at once.
+ */
+public final class SigningProfile {
+  private final String name;
+  private final PrivateKey privateKey;
+  private final List<X509Certificate> certificates;
+  private final DefaultApkSignerEngine.SignerConfig signerConfig;
+
+  private SigningProfile(String name, PrivateKey privateKey, List<X509Certificate> certificates) {
+    this.name = name;
+    this.privateKey = privateKey;
+    this.certificates = Collections.unmodifiableList(certificates);
+    this.signerConfig = new DefaultApkSignerEngine.SignerConfig.Builder(name, privateKey, certificates).build();
+  }
+
+  /**
+   * Loads the key with the given alias from a keystore.
+   *
+   * @param keyPassword The password of the key, may be the same as the keystore password.
+   */
+  public static SigningProfile load(File keystoreFile, String keystoreAlias, String keystorePassword, String keyPassword) throws ApkPatcherException {
+    if (keystoreFile == null || !keystoreFile.isFile()) {
+      throw new ApkPatcherException("Could not find keystore " + keystoreFile + "!");
+    }
+
+    final SignerParams signer = new SignerParams();
+    signer.setKeystoreFile(keystoreFile.getPath());
+    signer.setKeystorePasswordSpec("pass:" + keystorePassword);
+    signer.setKeyPasswordSpec("pass:" + keyPassword);
+    signer.setKeystoreKeyAlias(keystoreAlias);
+    signer.setName("signer #1");
+
+    final PasswordRetriever passwordRetriever = new PasswordRetriever();
+    try {
+      signer.loadPrivateKeyAndCerts(passwordRetriever);
+    } catch (Exception e) {
+      throw new ApkPatcherException("Failed to load signer", e);
+    } finally {
+      passwordRetriever.close();
+    }
+
+    return new SigningProfile(signer.getKeystoreKeyAlias(), signer.getPrivateKey(), signer.getCerts());
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public PrivateKey getPrivateKey() {
+    return privateKey;
+  }
+
+  public List<X509Certificate> getCertificates() {
+    return certificates;
+  }
+
+  public DefaultApkSignerEngine.SignerConfig getSignerConfig() {
+    return signerConfig;
+  }
+}
@@ -0,0 +1,124 @@
+package io.github.jroy.apkpatcher.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Resolves class descriptors, such as {@code Lcom/foo/Bar;}, to their smali files in a decoded apk.
+ * <p>
+ * apktool writes every class to {@code smali*}/{@code com/foo/Bar.smali}, so instead of crawling the tree a descriptor
+ * is resolved by checking that path in each smali folder, in dex order. Resolved descriptors are remembered, so a
+ * class targeted by several patches is only looked up once.
+ * <p>
+ * Names baksmali can't write as they are, such as too long names, which get a {@code #N} suffix, reserved names or
+ * names colliding on a case insensitive file system, end up in another file. So a file found by its path only counts if
+ * its {@code .class} header declares the class, otherwise the {@code .class} headers of all smali files are indexed once
+ * and the class is looked up there.
+ */
+public class SmaliClassIndex {
+  private final Path[] smaliFolders;
+  private final Map<String, Optional<Path>> classes = new ConcurrentHashMap<>();
+  private Map<String, Path> headers;
+
+  public SmaliClassIndex(File outputDirectory) {
+    final File[] folders = outputDirectory.listFiles(file -> file.isDirectory()
+        && (file.getName().equals("smali") || file.getName().startsWith("smali_classes")));
+    this.smaliFolders = folders == null ? new Path[0] : Arrays.stream(folders)
+        .sorted(Comparator.comparingInt(SmaliClassIndex::getDexNumber))
+        .map(File::toPath)
+        .toArray(Path[]::new);
+  }
+
+  /**
+   * @return The smali file of the class, or null if it isn't in any smali folder.
+   */
+  public Path resolve(String descriptor) {
+    return classes.computeIfAbsent(descriptor, this::lookup).orElse(null);
+  }
+
+  private Optional<Path> lookup(String descriptor) {
+    final String relativePath = descriptor.substring(1, descriptor.length() - 1) + ".smali";
+    for (Path smaliFolder : smaliFolders) {
+      final Path file = smaliFolder.resolve(relativePath);
+      if (Files.isRegularFile(file) && descriptor.equals(readHeader(file))) {
+        return Optional.of(file);
+      }
+    }
+    return Optional.ofNullable(getHeaders().get(descriptor));
+  }
+
+  /**
+   * @return The class declared by every smali file, built the first time a class isn't at its path.
+   */
+  private synchronized Map<String, Path> getHeaders() {
+    if (headers != null) {
+      return headers;
+    }
+    Logger.info("Indexing smali class headers...");
+    final Map<String, Path> index = new HashMap<>();
+    for (Path smaliFolder : smaliFolders) {
+      try (Stream<Path> files = Files.walk(smaliFolder)) {
+        final Iterator<Path> iterator = files.iterator();
+        while (iterator.hasNext()) {
+          final Path file = iterator.next();
+          if (!file.getFileName().toString().endsWith(".smali") || !Files.isRegularFile(file)) {
+            continue;
+          }
+          final String descriptor = readHeader(file);
+          if (descriptor != null) {
+            // Like the lookup by path, the first dex declaring a class wins.
+            index.putIfAbsent(descriptor, file);
+          }
+        }
+      } catch (IOException | UncheckedIOException e) {
+        Logger.error("Failed to index smali folder " + smaliFolder.getFileName() + ": " + e.getMessage());
+      }
+    }
+    headers = index;
+    return headers;
+  }
+
+  /**
+   * @return The descriptor in the {@code .class} header of the smali file, or null if it has none.
+   */
+  private static String readHeader(Path file) {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.startsWith(".class ")) {
+          return line.substring(line.lastIndexOf(' ') + 1);
+        }
+      }
+      return null;
+    } catch (IOException e) {
+      Logger.error("Failed to read smali file " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static int getDexNumber(File smaliFolder) {
+    final String name = smaliFolder.getName();
+    if (name.length() == 5) {
+      return 1;
+    }
+    try {
+      return Integer.parseInt(name.substring(13));
+    } catch (NumberFormatException e) {
+      return Integer.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+package io.github.jroy.apkpatcher.util;
+
+import io.github.jroy.apkpatcher.patcher.IApply;
+import io.github.jroy.apkpatcher.patcher.Patch;
+import io.github.jroy.apkpatcher.patcher.PatchProfiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches the terms of every {@link Patch} against a file in a single read.
+ * <p>
+ * All content terms are compiled into one Aho-Corasick automaton over their UTF-8 bytes, so a file is streamed once
+ * no matter how many patches are searched for, and every patch whose terms all occur in it is reported. Files are
+ * matched straight from their bytes, small ones through a reused per-thread buffer and large ones memory-mapped, so
+ * no lines or strings are created while searching.
+ */
+public class TermMatcher {
+  private static final int ALPHABET = 256;
+  private static final int MAP_THRESHOLD = 256 * 1024;
+  private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAP_THRESHOLD));
+
+  private final Patch[] patches;
+  private final int[][] patchPatterns;
+  private final int[][] patternPatches;
+  private final boolean[] emptyPatterns;
+  private final int[] transitions;
+  private final int[][] outputs;
+  private PhaseMetrics metrics;
+  private PatchProfiler.Stats[] patchStats;
+
+  public TermMatcher(List<Patch> patches) {
+    this.patches = patches.toArray(new Patch[0]);
+    this.patchPatterns = new int[this.patches.length][];
+
+    final Map<String, Integer> patternIds = new LinkedHashMap<>();
+    final List<List<Integer>> patternPatchList = new ArrayList<>();
+    for (int i = 0; i < this.patches.length; i++) {
+      final Patch patch = this.patches[i];
+      if (patch.isFileNameTerm()) {
+        patchPatterns[i] = new int[0];
+        continue;
+      }
+
+      final Set<Integer> ids = new LinkedHashSet<>();
+      for (String term : patch.getTerms()) {
+        final int id = patternIds.computeIfAbsent(term, t -> {
+          patternPatchList.add(new ArrayList<>());
+          return patternPatchList.size() - 1;
+        });
+        if (ids.add(id)) {
+          patternPatchList.get(id).add(i);
+        }
+      }
+      patchPatterns[i] = ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    this.patternPatches = new int[patternPatchList.size()][];
+    for (int i = 0; i < patternPatches.length; i++) {
+      patternPatches[i] = patternPatchList.get(i).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    final List<byte[]> patterns = new ArrayList<>();
+    this.emptyPatterns = new boolean[patternIds.size()];
+    for (String term : patternIds.keySet()) {
+      // An empty term is contained in everything, so it is never added to the automaton.
+      emptyPatterns[patterns.size()] = term.isEmpty();
+      patterns.add(term.getBytes(StandardCharsets.UTF_8));
+    }
+
+    int stateCount = 1;
+    for (byte[] pattern : patterns) {
+      stateCount += pattern.length;
+    }
+
+    // Build the trie, then turn it into a full DFA by resolving every missing transition through the failure links.
+    final int[] delta = new int[stateCount * ALPHABET];
+    Arrays.fill(delta, -1);
+    final List<List<Integer>> stateOutputs = new ArrayList<>();
+    stateOutputs.add(new ArrayList<>());
+    int states = 1;
+    for (int id = 0; id < patterns.size(); id++) {
+      if (emptyPatterns[id]) {
+        continue;
+      }
+      int state = 0;
+      for (byte b : patterns.get(id)) {
+        final int index = state * ALPHABET + (b & 0xff);
+        if (delta[index] == -1) {
+          delta[index] = states++;
+          stateOutputs.add(new ArrayList<>());
+        }
+        state = delta[index];
+      }
+      stateOutputs.get(state).add(id);
+    }
+
+    final int[] fail = new int[states];
+    final ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int c = 0; c < ALPHABET; c++) {
+      final int child = delta[c];
+      if (child == -1) {
+        delta[c] = 0;
+      } else {
+        fail[child] = 0;
+        queue.add(child);
+      }
+    }
+    while (!queue.isEmpty()) {
+      final int state = queue.poll();
+      stateOutputs.get(state).addAll(stateOutputs.get(fail[state]));
+      for (int c = 0; c < ALPHABET; c++) {
+        final int index = state * ALPHABET + c;
+        final int child = delta[index];
+        if (child == -1) {
+          delta[index] = delta[fail[state] * ALPHABET + c];
+        } else {
+          fail[child] = delta[fail[state] * ALPHABET + c];
+          queue.add(child);
+        }
+      }
+    }
+
+    this.transitions = Arrays.copyOf(delta, states * ALPHABET);
+    this.outputs = new int[states][];
+    for (int state = 0; state < states; state++) {
+      final List<Integer> out = stateOutputs.get(state);
+      outputs[state] = out.isEmpty() ? null : out.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  /**
+   * Sets the metrics the bytes read from searched files are counted in.
+   */
+  void setMetrics(PhaseMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets the profiler the files each patch is searched for in, and matches, are counted in.
+   */
+  void setProfiler(PatchProfiler profiler) {
+    patchStats = new PatchProfiler.Stats[patches.length];
+    for (int i = 0; i < patches.length; i++) {
+      patchStats[i] = profiler.getStats(patches[i]);
+    }
+  }
+
+  /**
+   * Reads the file once and returns every patch, in declaration order, whose terms all occur in it.
+   *
+   * @param file The file to search.
+   * @param skip Patches which should not be searched for, such as ones that were already applied.
+   */
+  public List<Patch> match(Path file, Collection<? extends IApply> skip) throws IOException {
+    final int[] remaining = new int[patches.length];
+    final boolean[] active = new boolean[patches.length];
+    int pending = 0;
+    String fileName = null;
+
+    for (int i = 0; i < patches.length; i++) {
+      final Patch patch = patches[i];
+      if (skip.contains(patch)) {
+        continue;
+      }
+      active[i] = true;
+      if (patchStats != null) {
+        patchStats[i].addFileExamined();
+      }
+
+      if (patch.isFileNameTerm()) {
+        if (fileName == null) {
+          fileName = file.getFileName().toString();
+        }
+        for (String term : patch.getTerms()) {
+          if (!fileName.contains(term)) {
+            remaining[i]++;
+          }
+        }
+        // File name terms are resolved up front, a miss can never be satisfied by the content.
+        if (remaining[i] != 0) {
+          active[i] = false;
+        }
+      } else {
+        for (int pattern : patchPatterns[i]) {
+          if (!emptyPatterns[pattern]) {
+            remaining[i]++;
+          }
+        }
+        if (remaining[i] != 0) {
+          pending++;
+        }
+      }
+    }
+
+    if (pending != 0) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        final long size = channel.size();
+        if (metrics != null) {
+          metrics.addBytesRead(size);
+        }
+        final boolean[] found = new boolean[patternPatches.length];
+        if (size <= MAP_THRESHOLD) {
+          // Mapping has a fixed cost which outweighs a plain read for the typical smali file.
+          final ByteBuffer buffer = READ_BUFFER.get().clear();
+          while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+              break;
+            }
+          }
+          scan(buffer.flip(), found, active, remaining, pending);
+        } else if (size <= Integer.MAX_VALUE) {
+          scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), found, active, remaining, pending);
+        } else {
+          throw new IOException("File is too large to search: " + file);
+        }
+      }
+    }
+
+    List<Patch> matched = null;
+    for (int i = 0; i < patches.length; i++) {
+      if (active[i] && remaining[i] == 0) {
+        if (matched == null) {
+          matched = new ArrayList<>();
+        }
+        matched.add(patches[i]);
+        if (patchStats != null) {
+          patchStats[i].addMatch();
+        }
+      }
+    }
+    return matched == null ? Collections.emptyList() : matched;
+  }
+
+  private void scan(ByteBuffer buffer, boolean[] found, boolean[] active, int[] remaining, int pending) {
+    final int[] transitions = this.transitions;
+    final int[][] outputs = this.outputs;
+    int state = 0;
+
+    for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+      state = transitions[state * ALPHABET + (buffer.get(i) & 0xff)];
+      final int[] out = outputs[state];
+      if (out == null) {
+        continue;
+      }
+      for (int pattern : out) {
+        if (found[pattern]) {
+          continue;
+        }
+        found[pattern] = true;
+        for (int patch : patternPatches[pattern]) {
+          if (active[patch] && --remaining[patch] == 0 && --pending == 0) {
+            return;
+          }
+        }
+      }
+    }
+  }
+}
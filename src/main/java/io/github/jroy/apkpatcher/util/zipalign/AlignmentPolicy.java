@@ -0,0 +1,77 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+/**
+ * Decides the alignment of the data of every stored entry, from a default and a list of glob rules.
+ * <p>
+ * Rules are checked in the order they were added and the first matching one wins. A glob without a {@code /} is
+ * matched against the file name of an entry, any other glob against its full name.
+ */
+public class AlignmentPolicy {
+  public static final int PAGE_ALIGNMENT = 16 * 1024;
+  public static final int MAX_ALIGNMENT = 0x8000;
+
+  /**
+   * Aligns native libraries to 16KB pages, so they can be mapped straight from the APK, and everything else to 4 bytes.
+   */
+  public static final AlignmentPolicy DEFAULT = new Builder(ZipAligner.DEFAULT_ALIGNMENT)
+      .add("*.so", PAGE_ALIGNMENT)
+      .build();
+
+  private final int defaultAlignment;
+  private final GlobRuleSet<Integer> rules;
+
+  private AlignmentPolicy(Builder builder) {
+    this.defaultAlignment = builder.defaultAlignment;
+    this.rules = new GlobRuleSet<>(builder.rules);
+  }
+
+  /**
+   * @return An alignment policy which aligns every stored entry the same.
+   */
+  public static AlignmentPolicy of(int alignment) {
+    return new Builder(alignment).build();
+  }
+
+  /**
+   * @return An alignment policy like {@link #DEFAULT}, with the given alignments for native libraries and every other
+   * stored entry.
+   */
+  public static AlignmentPolicy of(int alignment, int nativeLibraryAlignment) {
+    return new Builder(alignment).add("*.so", nativeLibraryAlignment).build();
+  }
+
+  /**
+   * @return The alignment of the entry's data in bytes, where 1 means the entry isn't aligned.
+   */
+  public int getAlignment(String entryName) {
+    return rules.match(entryName, defaultAlignment);
+  }
+
+  private static int checkAlignment(int alignment) {
+    if (alignment < 1 || alignment > MAX_ALIGNMENT || Integer.bitCount(alignment) != 1) {
+      throw new IllegalArgumentException("Alignment must be a power of two between 1 and " + MAX_ALIGNMENT + ": " + alignment);
+    }
+    return alignment;
+  }
+
+  public static class Builder {
+    private final int defaultAlignment;
+    private final GlobRuleSet<Integer> rules = new GlobRuleSet<>();
+
+    public Builder(int defaultAlignment) {
+      this.defaultAlignment = checkAlignment(defaultAlignment);
+    }
+
+    /**
+     * Aligns the stored entries matching the glob, such as {@code *.so} or {@code lib/arm64-v8a/**}.
+     */
+    public Builder add(String glob, int alignment) {
+      rules.add(glob, checkAlignment(alignment));
+      return this;
+    }
+
+    public AlignmentPolicy build() {
+      return new AlignmentPolicy(this);
+    }
+  }
+}
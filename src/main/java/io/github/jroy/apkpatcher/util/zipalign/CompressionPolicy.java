@@ -0,0 +1,100 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how every entry is compressed in the output, from a default and a list of glob rules.
+ * <p>
+ * An entry is either kept as it was in the input, stored, or deflated at a level. Rules are checked in the order they
+ * were added and the first matching one wins, with the same glob syntax as {@link AlignmentPolicy}.
+ */
+public class CompressionPolicy {
+  /**
+   * Copies the entry as it is compressed in the input.
+   */
+  public static final int KEEP = -2;
+  /**
+   * Stores the entry uncompressed.
+   */
+  public static final int STORE = -1;
+
+  /**
+   * Keeps every entry as it is, which doesn't recompress anything.
+   */
+  public static final CompressionPolicy KEEP_ALL = new Builder(KEEP).build();
+
+  /**
+   * Stores native libraries and the resource table so they can be mapped from the APK, and deflates the dex files at
+   * the best compression. Everything else is kept as it is.
+   */
+  public static final CompressionPolicy DISTRIBUTION = new Builder(KEEP)
+      .add("resources.arsc", STORE)
+      .add("*.so", STORE)
+      .add("*.dex", Deflater.BEST_COMPRESSION)
+      .build();
+
+  private final int defaultLevel;
+  private final GlobRuleSet<Integer> rules;
+
+  private CompressionPolicy(Builder builder) {
+    this.defaultLevel = builder.defaultLevel;
+    this.rules = new GlobRuleSet<>(builder.rules);
+  }
+
+  /**
+   * Parses a policy by name, {@code keep} for {@link #KEEP_ALL}, {@code distribution} for {@link #DISTRIBUTION},
+   * {@code store} to store every entry or a deflate level from 0 to 9 to deflate every entry at.
+   *
+   * @throws IllegalArgumentException If the policy is unknown.
+   */
+  public static CompressionPolicy parse(String policy) {
+    return switch (policy.trim().toLowerCase(Locale.ROOT)) {
+      case "keep" -> KEEP_ALL;
+      case "distribution" -> DISTRIBUTION;
+      case "store" -> new Builder(STORE).build();
+      default -> {
+        try {
+          yield new Builder(Integer.parseInt(policy.trim())).build();
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Unknown compression policy '" + policy.trim() + "'");
+        }
+      }
+    };
+  }
+
+  /**
+   * @return {@link #KEEP}, {@link #STORE} or the deflate level of the entry.
+   */
+  public int getLevel(String entryName) {
+    return rules.match(entryName, defaultLevel);
+  }
+
+  private static int checkLevel(int level) {
+    if (level != KEEP && level != STORE && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Compression must be KEEP, STORE or a deflate level from 0 to 9: " + level);
+    }
+    return level;
+  }
+
+  public static class Builder {
+    private final int defaultLevel;
+    private final GlobRuleSet<Integer> rules = new GlobRuleSet<>();
+
+    /**
+     * @param defaultLevel {@link #KEEP}, {@link #STORE} or the deflate level of entries no rule matches.
+     */
+    public Builder(int defaultLevel) {
+      this.defaultLevel = checkLevel(defaultLevel);
+    }
+
+    public Builder add(String glob, int level) {
+      rules.add(glob, checkLevel(level));
+      return this;
+    }
+
+    public CompressionPolicy build() {
+      return new CompressionPolicy(this);
+    }
+  }
+}
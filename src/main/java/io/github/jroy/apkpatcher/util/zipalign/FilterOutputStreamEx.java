@@ -3,46 +3,161 @@ package io.github.jroy.apkpatcher.util.zipalign;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
+/**
+ * An output stream which encodes little-endian zip records into a reused buffer and tracks how much has been written.
+ */
 public class FilterOutputStreamEx extends FilterOutputStream {
+  private static final int DEFAULT_BUFFER = 8 * 1024;
 
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
   private long totalWritten = 0;
 
   public FilterOutputStreamEx(OutputStream out) {
     super(out);
+    this.channel = null;
+    this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Creates a stream over a file channel, which allows {@link #transferFrom(FileChannel, long, long)}.
+   */
+  public FilterOutputStreamEx(FileChannel channel, int bufferSize) {
+    super(Channels.newOutputStream(channel));
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
   }
 
   @Override
   public void write(byte[] b) throws IOException {
-    out.write(b);
-    totalWritten += b.length;
+    write(b, 0, b.length);
   }
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
-    out.write(b, off, len);
+    if (len > buffer.capacity()) {
+      drain();
+      out.write(b, off, len);
+    } else {
+      ensure(len);
+      buffer.put(b, off, len);
+    }
     totalWritten += len;
   }
 
   @Override
   public void write(int b) throws IOException {
-    out.write(b);
+    ensure(1);
+    buffer.put((byte) b);
     totalWritten += 1;
   }
 
+  /**
+   * Writes the remaining bytes of the buffer, straight to the file channel when there is one.
+   */
+  public void write(ByteBuffer src) throws IOException {
+    final int length = src.remaining();
+    if (channel == null || length <= buffer.remaining()) {
+      while (src.hasRemaining()) {
+        ensure(1);
+        final int chunk = Math.min(src.remaining(), buffer.remaining());
+        buffer.put(buffer.position(), src, src.position(), chunk);
+        buffer.position(buffer.position() + chunk);
+        src.position(src.position() + chunk);
+      }
+    } else {
+      drain();
+      while (src.hasRemaining()) {
+        channel.write(src);
+      }
+    }
+    totalWritten += length;
+  }
+
   public void writeInt(long v) throws IOException {
-    write((int) ((v) & 0xff));
-    write((int) ((v >>> 8) & 0xff));
-    write((int) ((v >>> 16) & 0xff));
-    write((int) ((v >>> 24) & 0xff));
+    ensure(4);
+    buffer.putInt((int) v);
+    totalWritten += 4;
+  }
+
+  public void writeLong(long v) throws IOException {
+    ensure(8);
+    buffer.putLong(v);
+    totalWritten += 8;
   }
 
   public void writeShort(int v) throws IOException {
-    write((v) & 0xff);
-    write((v >>> 8) & 0xff);
+    ensure(2);
+    buffer.putShort((short) v);
+    totalWritten += 2;
+  }
+
+  public void writeZeros(int count) throws IOException {
+    while (count > 0) {
+      ensure(1);
+      final int length = Math.min(count, buffer.remaining());
+      for (int i = 0; i < length; i++) {
+        buffer.put((byte) 0);
+      }
+      count -= length;
+      totalWritten += length;
+    }
+  }
+
+  /**
+   * Copies a region of another file straight into the output channel, letting the kernel move the bytes where the
+   * platform supports it.
+   */
+  public void transferFrom(FileChannel source, long position, long count) throws IOException {
+    if (channel == null) {
+      throw new IllegalStateException("Not backed by a file channel");
+    }
+
+    drain();
+    long transferred = 0;
+    while (transferred < count) {
+      final long written = source.transferTo(position + transferred, count - transferred, channel);
+      if (written <= 0) {
+        throw new IOException("Unexpected end of input at offset " + (position + transferred));
+      }
+      transferred += written;
+    }
+    totalWritten += count;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    out.flush();
   }
 
   public long totalWritten() {
     return totalWritten;
   }
-}
\ No newline at end of file
+
+  private void ensure(int length) throws IOException {
+    if (buffer.remaining() < length) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    if (buffer.position() == 0) {
+      return;
+    }
+    if (channel != null) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } else {
+      out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,69 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An ordered list of glob rules over zip entry names, where the first matching rule wins.
+ * <p>
+ * A glob without a {@code /} is matched against the file name of an entry, any other glob against its full name, where
+ * {@code *} and {@code ?} stop at a {@code /} and {@code **} does not.
+ */
+class GlobRuleSet<T> {
+  private final List<Pattern> patterns = new ArrayList<>();
+  private final List<Boolean> fileNameOnly = new ArrayList<>();
+  private final List<T> values = new ArrayList<>();
+
+  GlobRuleSet() {
+  }
+
+  GlobRuleSet(GlobRuleSet<T> other) {
+    patterns.addAll(other.patterns);
+    fileNameOnly.addAll(other.fileNameOnly);
+    values.addAll(other.values);
+  }
+
+  void add(String glob, T value) {
+    patterns.add(compileGlob(glob));
+    fileNameOnly.add(glob.indexOf('/') == -1);
+    values.add(value);
+  }
+
+  /**
+   * @return The value of the first rule matching the entry, or the fallback if none does.
+   */
+  T match(String entryName, T fallback) {
+    if (patterns.isEmpty()) {
+      return fallback;
+    }
+
+    final String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+    for (int i = 0; i < patterns.size(); i++) {
+      if (patterns.get(i).matcher(fileNameOnly.get(i) ? fileName : entryName).matches()) {
+        return values.get(i);
+      }
+    }
+    return fallback;
+  }
+
+  private static Pattern compileGlob(String glob) {
+    final StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      final char c = glob.charAt(i);
+      if (c == '*') {
+        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+          regex.append(".*");
+          i++;
+        } else {
+          regex.append("[^/]*");
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
@@ -0,0 +1,326 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import io.github.jroy.apkpatcher.util.PhaseMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Recompresses the entries of a zip file according to a {@link CompressionPolicy}, ahead of the writer.
+ * <p>
+ * Entries are recompressed into direct buffers on a pool of threads while the writer takes the results back in entry
+ * order, so the output stays deterministic. Only a bounded window of entries is in flight at once, bounded both by
+ * their count and by the bytes their buffers may take, which caps the memory held by finished entries the writer
+ * hasn't reached yet.
+ * <p>
+ * Entries too large to buffer aren't recompressed ahead: stored entries are inflated straight into the output, and
+ * deflated ones are deflated into a temporary file on the writer's thread, since their size has to be known before
+ * their local header is written.
+ */
+class Recompressor implements Closeable {
+  /**
+   * Buffers of entries up to this size are kept for reuse, larger ones are left to the garbage collector.
+   */
+  private static final int MAX_POOLED_BUFFER = 256 * 1024;
+  /**
+   * Entries whose recompressed data may take more than this are streamed instead of buffered.
+   */
+  private static final long MAX_BUFFERED_ENTRY = 16 * 1024 * 1024;
+  /**
+   * The bytes all entries recompressed ahead of the writer may take together.
+   */
+  private static final long MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+  private final ZipInput mZipInput;
+  private final List<ZipInputEntry> mEntries;
+  private final CompressionPolicy mPolicy;
+  private final ExecutorService mExecutor;
+  private final int mWindow;
+  private final Future<?>[] mFutures;
+  private final ConcurrentLinkedQueue<ByteBuffer> mBufferPool = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<ByteBuffer> mChunk = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(ZipAligner.FILE_BUFFER));
+  private int mSubmitted = 0;
+  private long mBufferedBytes = 0;
+  private ByteBuffer mStreamBuffer;
+  private FileChannel mStreamFile;
+
+  /**
+   * @param threads The amount of threads to recompress with, 1 recompresses on the writer's thread.
+   * @param metrics The metrics the work of the recompressing threads is counted in.
+   */
+  Recompressor(ZipInput zipInput, CompressionPolicy policy, int threads, PhaseMetrics metrics) {
+    mZipInput = zipInput;
+    mEntries = zipInput.entries();
+    mPolicy = policy;
+    mExecutor = threads > 1 ? Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(metrics.metered(runnable), "ZipAligner-Recompressor");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+    mWindow = Math.max(1, threads * 2);
+    mFutures = new Future<?>[mEntries.size()];
+  }
+
+  /**
+   * Returns the recompressed data of the entry at the index of {@link ZipInput#entries()}, which must be taken in order.
+   * The data must be written with {@link #write(Recompressed, FilterOutputStreamEx)} before the next entry is taken.
+   *
+   * @return The recompressed entry, or null if the entry is copied as it is.
+   */
+  Recompressed take(int index) throws IOException {
+    final ZipInputEntry entry = mEntries.get(index);
+    if (!needsRecompression(entry)) {
+      return null;
+    }
+    if (!isBuffered(entry)) {
+      return stream(entry);
+    }
+    if (mExecutor == null) {
+      return recompress(entry);
+    }
+
+    while (mSubmitted < mEntries.size() && mSubmitted <= index + mWindow) {
+      final ZipInputEntry submit = mEntries.get(mSubmitted);
+      if (needsRecompression(submit) && isBuffered(submit)) {
+        final long bytes = getBufferBound(submit);
+        // The entry the writer waits for is always submitted, so the window can't stall on a full budget.
+        if (mSubmitted > index && mBufferedBytes + bytes > MAX_BUFFERED_BYTES) {
+          break;
+        }
+        mBufferedBytes += bytes;
+        mFutures[mSubmitted] = mExecutor.submit(() -> recompress(submit));
+      }
+      mSubmitted++;
+    }
+
+    final Future<?> future = mFutures[index];
+    mFutures[index] = null;
+    mBufferedBytes -= getBufferBound(entry);
+    try {
+      return (Recompressed) future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while recompressing " + entry.getName(), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new IOException("Failed to recompress " + entry.getName(), e.getCause());
+    }
+  }
+
+  /**
+   * Writes the recompressed data of an entry and hands its buffer back for reuse.
+   */
+  void write(Recompressed recompressed, FilterOutputStreamEx out) throws IOException {
+    if (recompressed.data() != null) {
+      out.write(recompressed.data());
+      final ByteBuffer data = recompressed.data();
+      if (data.capacity() == MAX_POOLED_BUFFER && mBufferPool.size() < mWindow) {
+        mBufferPool.add(data.clear());
+      }
+      return;
+    }
+
+    if (recompressed.method() == ZipInputEntry.STORED) {
+      final long[] written = {0};
+      mZipInput.readUncompressed(recompressed.entry(), mChunk.get(), chunk -> {
+        written[0] += chunk.remaining();
+        if (written[0] > recompressed.size()) {
+          throw new ZipException("Entry is larger than its recorded size: " + recompressed.entry().getName());
+        }
+        out.write(chunk);
+      });
+      if (written[0] != recompressed.size()) {
+        throw new ZipException("Entry is smaller than its recorded size: " + recompressed.entry().getName());
+      }
+      return;
+    }
+
+    try {
+      out.transferFrom(mStreamFile, 0, recompressed.size());
+    } finally {
+      closeStreamFile();
+    }
+  }
+
+  @Override
+  public void close() {
+    closeStreamFile();
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+      try {
+        // The threads count their work when they end.
+        mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean needsRecompression(ZipInputEntry entry) {
+    final int level = mPolicy.getLevel(entry.getName());
+    return level != CompressionPolicy.KEEP && (level != CompressionPolicy.STORE || entry.method() != ZipInputEntry.STORED);
+  }
+
+  private boolean isBuffered(ZipInputEntry entry) {
+    return getBufferBound(entry) <= MAX_BUFFERED_ENTRY;
+  }
+
+  /**
+   * @return The bytes the recompressed data of the entry can take, deflate adds a few bytes to incompressible data.
+   */
+  private long getBufferBound(ZipInputEntry entry) {
+    if (mPolicy.getLevel(entry.getName()) == CompressionPolicy.STORE) {
+      return entry.size();
+    }
+    return entry.size() + (entry.size() >> 8) + 64;
+  }
+
+  private Recompressed recompress(ZipInputEntry entry) throws IOException {
+    final int level = mPolicy.getLevel(entry.getName());
+    if (level == CompressionPolicy.STORE) {
+      final ByteBuffer out = acquire((int) entry.size());
+      mZipInput.readUncompressed(entry, mChunk.get(), chunk -> {
+        if (chunk.remaining() > out.remaining()) {
+          throw new ZipException("Entry is larger than its recorded size: " + entry.getName());
+        }
+        out.put(chunk);
+      });
+      if (out.position() != entry.size()) {
+        throw new ZipException("Entry is smaller than its recorded size: " + entry.getName());
+      }
+      out.flip();
+      return new Recompressed(entry, ZipInputEntry.STORED, out.remaining(), out);
+    }
+
+    final Deflater deflater = new Deflater(level, true);
+    try {
+      final ByteBuffer[] out = {acquire((int) getBufferBound(entry))};
+      mZipInput.readUncompressed(entry, mChunk.get(), chunk -> {
+        deflater.setInput(chunk);
+        while (!deflater.needsInput()) {
+          out[0] = deflate(deflater, out[0]);
+        }
+      });
+      deflater.finish();
+      while (!deflater.finished()) {
+        out[0] = deflate(deflater, out[0]);
+      }
+      out[0].flip();
+      return new Recompressed(entry, ZipInputEntry.DEFLATED, out[0].remaining(), out[0]);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Recompresses an entry too large to buffer on the writer's thread.
+   */
+  private Recompressed stream(ZipInputEntry entry) throws IOException {
+    final int level = mPolicy.getLevel(entry.getName());
+    if (level == CompressionPolicy.STORE) {
+      return new Recompressed(entry, ZipInputEntry.STORED, entry.size(), null);
+    }
+
+    if (mStreamBuffer == null) {
+      mStreamBuffer = ByteBuffer.allocateDirect(ZipAligner.FILE_BUFFER);
+    }
+    closeStreamFile();
+    mStreamFile = FileChannel.open(Files.createTempFile("ZipAligner", ".deflated"), StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    final FileChannel file = mStreamFile;
+    final ByteBuffer out = mStreamBuffer.clear();
+    final Deflater deflater = new Deflater(level, true);
+    try {
+      mZipInput.readUncompressed(entry, mChunk.get(), chunk -> {
+        deflater.setInput(chunk);
+        while (!deflater.needsInput()) {
+          deflateTo(deflater, out, file);
+        }
+      });
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflateTo(deflater, out, file);
+      }
+      out.flip();
+      while (out.hasRemaining()) {
+        file.write(out);
+      }
+      return new Recompressed(entry, ZipInputEntry.DEFLATED, file.size(), null);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void deflateTo(Deflater deflater, ByteBuffer out, FileChannel file) throws IOException {
+    if (!out.hasRemaining()) {
+      out.flip();
+      while (out.hasRemaining()) {
+        file.write(out);
+      }
+      out.clear();
+    }
+    deflater.deflate(out);
+  }
+
+  private ByteBuffer deflate(Deflater deflater, ByteBuffer out) throws ZipException {
+    if (!out.hasRemaining()) {
+      // Only buffered entries get here, so this stays far below the largest buffer possible.
+      final long capacity = (long) out.capacity() * 2;
+      if (capacity > MAX_BUFFERED_ENTRY * 2) {
+        throw new ZipException("Deflated data outgrew its buffer");
+      }
+      final ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+      grown.put(out.flip());
+      out = grown;
+    }
+    deflater.deflate(out);
+    return out;
+  }
+
+  /**
+   * Buffers small enough to be pooled all get the pooled size, so any of them fits the next small entry.
+   */
+  private ByteBuffer acquire(int capacity) {
+    if (capacity > MAX_POOLED_BUFFER) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    final ByteBuffer pooled = mBufferPool.poll();
+    return (pooled != null ? pooled : ByteBuffer.allocateDirect(MAX_POOLED_BUFFER)).limit(capacity);
+  }
+
+  private void closeStreamFile() {
+    if (mStreamFile == null) {
+      return;
+    }
+    try {
+      mStreamFile.close();
+    } catch (IOException ignored) {
+      // The file is deleted on close, or when the JVM exits at the latest.
+    }
+    mStreamFile = null;
+  }
+
+  /**
+   * @param entry  The input entry which was recompressed.
+   * @param method The compression method of the data.
+   * @param size   The size of the recompressed data.
+   * @param data   The recompressed data, from its position to its limit, or null if it is streamed when written.
+   */
+  record Recompressed(ZipInputEntry entry, int method, long size, ByteBuffer data) {
+  }
+}
@@ -1,6 +1,7 @@
 package io.github.jroy.apkpatcher.util.zipalign;
 
-import java.util.zip.ZipEntry;
-
-public record XEntry(ZipEntry entry, long headerOffset, int flags, int padding) {
+/**
+ * @param extra The local header extra field, without the alignment padding.
+ */
+public record XEntry(ZipInputEntry entry, byte[] extra, long headerOffset, int flags, int padding) {
 }
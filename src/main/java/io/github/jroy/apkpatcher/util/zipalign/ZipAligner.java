@@ -1,257 +1,459 @@
 package io.github.jroy.apkpatcher.util.zipalign;
 
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSources;
+import io.github.jroy.apkpatcher.util.PatchMetrics;
+import io.github.jroy.apkpatcher.util.PhaseMetrics;
 import org.apache.commons.io.IOUtils;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
 
 
 public class ZipAligner {
   public static final int ZIP_ENTRY_HEADER_LEN = 30;
   public static final int ZIP_ENTRY_VERSION = 20;
+  public static final int ZIP64_ENTRY_VERSION = 45;
   public static final int ZIP_ENTRY_USES_DATA_DESCR = 0x0008;
-  public static final int ZIP_ENTRY_DATA_DESCRIPTOR_LEN = 16;
+  public static final int ZIP_ENTRY_DEFLATE_OPTIONS = 0x0006;
   public static final int DEFAULT_ALIGNMENT = 4;
   public static final int FILE_BUFFER = 32 * 1024;
+  private static final int DOS_EPOCH_DATE = 0x21;
+  private static final byte[] EMPTY = new byte[0];
 
   private final File mInputFile;
   private final File mOutputFile;
+  private final ApkSignerEngine mSignerEngine;
+  private final AlignmentPolicy mAlignmentPolicy;
+  private final CompressionPolicy mCompressionPolicy;
+  private final int mCompressionThreads;
   private final List<XEntry> mXEntries = new ArrayList<>();
 
-  private ZipFile mZipFile;
-  private RandomAccessFile mRafInput;
+  private ZipInput mZipInput;
+  private FileChannel mOutputChannel;
   private FilterOutputStreamEx mOutputStream;
-  private long mInputFileOffset = 0;
-  private int mTotalPadding = 0;
+  private ByteBuffer mInflateBuffer;
+  private Recompressor mRecompressor;
+  private PhaseMetrics mMetrics;
 
   public ZipAligner(File input, File output) {
+    this(input, output, null);
+  }
+
+  /**
+   * Creates an aligner which also signs the APK while writing it, so the aligned APK never has to be written out and
+   * read back in by a separate signing step.
+   *
+   * @param signerEngine The engine to sign the output with, or null to only align.
+   */
+  public ZipAligner(File input, File output, ApkSignerEngine signerEngine) {
+    this(input, output, signerEngine, AlignmentPolicy.DEFAULT);
+  }
+
+  /**
+   * @param alignmentPolicy The alignment of the data of each stored entry.
+   */
+  public ZipAligner(File input, File output, ApkSignerEngine signerEngine, AlignmentPolicy alignmentPolicy) {
+    this(input, output, signerEngine, alignmentPolicy, CompressionPolicy.KEEP_ALL, 1);
+  }
+
+  /**
+   * @param compressionPolicy  How each entry is recompressed, {@link CompressionPolicy#KEEP_ALL} copies every entry as
+   *                           it is.
+   * @param compressionThreads The amount of threads entries are recompressed on ahead of the writer.
+   */
+  public ZipAligner(File input, File output, ApkSignerEngine signerEngine, AlignmentPolicy alignmentPolicy, CompressionPolicy compressionPolicy, int compressionThreads) {
     this.mInputFile = input;
     this.mOutputFile = output;
+    this.mSignerEngine = signerEngine;
+    this.mAlignmentPolicy = alignmentPolicy;
+    this.mCompressionPolicy = compressionPolicy;
+    this.mCompressionThreads = compressionThreads;
+    this.mMetrics = new PhaseMetrics(input.getName(), PatchMetrics.Phase.ALIGN_AND_SIGN.getName());
+  }
+
+  /**
+   * Sets the metrics the bytes read and written, the entries copied and the work of the recompressing threads are
+   * counted in.
+   */
+  public void setMetrics(PhaseMetrics metrics) {
+    this.mMetrics = metrics;
+  }
+
+  /**
+   * Checks the alignment of an existing zip file without rewriting it.
+   *
+   * @return The names of the stored entries whose data isn't aligned as the policy requires, empty if all are.
+   */
+  public static List<String> verify(File file, AlignmentPolicy alignmentPolicy) throws IOException {
+    final List<String> misaligned = new ArrayList<>();
+    try (ZipInput zipInput = new ZipInput(file)) {
+      for (ZipInputEntry entry : zipInput.entries()) {
+        if (entry.method() != ZipInputEntry.STORED) {
+          continue;
+        }
+        final String name = entry.getName();
+        if (zipInput.dataOffset(entry) % alignmentPolicy.getAlignment(name) != 0) {
+          misaligned.add(name);
+        }
+      }
+    }
+    return misaligned;
   }
 
   public void run() {
     try {
-      mZipFile = new ZipFile(mInputFile);
-      mRafInput = new RandomAccessFile(mInputFile, "r");
-      mOutputStream = new FilterOutputStreamEx(new BufferedOutputStream(
-          new FileOutputStream(mOutputFile),
-          FILE_BUFFER
-      ));
+      mZipInput = new ZipInput(mInputFile);
+      mOutputChannel = FileChannel.open(mOutputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      mOutputStream = new FilterOutputStreamEx(mOutputChannel, FILE_BUFFER);
+      if (mCompressionPolicy != CompressionPolicy.KEEP_ALL) {
+        mRecompressor = new Recompressor(mZipInput, mCompressionPolicy, mCompressionThreads, mMetrics);
+      }
       copyAllEntries();
+      if (mSignerEngine != null) {
+        writeSignatureEntries();
+      }
       buildCentralDirectory();
+      mMetrics.addBytesRead(mInputFile.length());
+      mMetrics.addBytesWritten(mOutputStream.totalWritten());
     } catch (Exception exception) {
       throw new RuntimeException(exception);
     } finally {
-      IOUtils.closeQuietly(mZipFile);
-      IOUtils.closeQuietly(mRafInput);
+      IOUtils.closeQuietly(mRecompressor);
+      IOUtils.closeQuietly(mZipInput);
       IOUtils.closeQuietly(mOutputStream);
+      IOUtils.closeQuietly(mOutputChannel);
     }
   }
 
   private void copyAllEntries() throws IOException {
-    final int entryCount = mZipFile.size();
-    if (entryCount == 0) {
-      return;
-    }
-
-    final Enumeration<? extends ZipEntry> entries = mZipFile.entries();
-    while (entries.hasMoreElements()) {
-      final ZipEntry entry = entries.nextElement();
+    final List<ZipInputEntry> entries = mZipInput.entries();
+    for (int i = 0; i < entries.size(); i++) {
+      final ZipInputEntry inputEntry = entries.get(i);
+      mMetrics.addFileScanned();
+      final Recompressor.Recompressed recompressed = mRecompressor != null ? mRecompressor.take(i) : null;
+
+      ZipInputEntry entry = inputEntry;
+      if (recompressed != null) {
+        entry = new ZipInputEntry(entry.name(), entry.flags() & ~ZIP_ENTRY_DEFLATE_OPTIONS, recompressed.method(),
+            entry.time(), entry.date(), entry.crc(), recompressed.size(), entry.size(), entry.extra(),
+            entry.comment(), entry.localHeaderOffset());
+      }
 
-      int flags = entry.getMethod() == ZipEntry.STORED ? 0 : 1 << 3;
-      flags |= 1 << 11;
+      if (mSignerEngine != null) {
+        final ApkSignerEngine.InputJarEntryInstructions instructions = mSignerEngine.inputJarEntry(entry.getName());
+        inspectEntry(instructions.getInspectJarEntryRequest(), inputEntry);
+        if (instructions.getOutputPolicy() != ApkSignerEngine.InputJarEntryInstructions.OutputPolicy.OUTPUT) {
+          // Old signature files are either dropped or regenerated by the engine.
+          continue;
+        }
+      }
 
+      // The central directory holds the real sizes and CRC, so they go in the local header and no data descriptor is
+      // written.
+      final int flags = entry.flags() & ~ZIP_ENTRY_USES_DATA_DESCR;
+      byte[] localExtra = ZipInput.stripZip64Extra(mZipInput.localExtra(inputEntry));
+      if (isZip64(entry)) {
+        // A ZIP64 local header always holds both sizes.
+        localExtra = withZip64Extra(localExtra, new long[]{entry.size(), entry.compressedSize()}, 2);
+      }
       final long outputEntryHeaderOffset = mOutputStream.totalWritten();
 
-      final int inputEntryHeaderSize = ZIP_ENTRY_HEADER_LEN + (entry.getExtra() != null ? entry.getExtra().length : 0) + entry.getName().getBytes(StandardCharsets.UTF_8).length;
-      final long inputEntryDataOffset = mInputFileOffset + inputEntryHeaderSize;
-
       final int padding;
-
-      if (entry.getMethod() != ZipEntry.STORED) {
+      if (entry.method() != ZipInputEntry.STORED) {
         padding = 0;
       } else {
-        long newOffset = inputEntryDataOffset + mTotalPadding;
-        padding = (int) ((DEFAULT_ALIGNMENT - (newOffset % DEFAULT_ALIGNMENT)) % DEFAULT_ALIGNMENT);
-        mTotalPadding += padding;
+        final int alignment = mAlignmentPolicy.getAlignment(entry.getName());
+        final long dataOffset = outputEntryHeaderOffset + ZIP_ENTRY_HEADER_LEN + entry.name().length + localExtra.length;
+        padding = (int) ((alignment - (dataOffset % alignment)) % alignment);
+        if (localExtra.length + padding > 0xffff) {
+          throw new ZipException("Extra field of " + entry.getName() + " is too large to be aligned");
+        }
       }
 
-      final XEntry xentry = new XEntry(entry,
-          outputEntryHeaderOffset, flags, padding);
+      final XEntry xentry = new XEntry(entry, localExtra, outputEntryHeaderOffset, flags, padding);
       mXEntries.add(xentry);
 
-      byte[] extra = entry.getExtra();
-      if (extra == null) {
-        extra = new byte[padding];
-        Arrays.fill(extra, (byte) 0);
-      } else {
-        byte[] newExtra = new byte[extra.length + padding];
-        System.arraycopy(extra, 0, newExtra, 0, extra.length);
-        Arrays.fill(newExtra, extra.length, newExtra.length,
-            (byte) 0);
-        extra = newExtra;
-      }
-      entry.setExtra(extra);
-
       /*
        * Now write the header to output.
        */
 
-      mOutputStream.writeInt(ZipOutputStream.LOCSIG);
-      mOutputStream.writeShort(ZIP_ENTRY_VERSION);
-      mOutputStream.writeShort(flags);
-      mOutputStream.writeShort(entry.getMethod());
+      writeLocalHeader(xentry);
 
-      final CalenderDateTime time = new CalenderDateTime(entry.getTime());
+      if (recompressed != null) {
+        mRecompressor.write(recompressed, mOutputStream);
+      } else if (entry.compressedSize() > 0) {
+        mOutputStream.transferFrom(mZipInput.channel(), mZipInput.dataOffset(entry), entry.compressedSize());
+      }
 
-      mOutputStream.writeShort(time.getTime());
-      mOutputStream.writeShort(time.getModDate());
+      if (mSignerEngine != null) {
+        inspectEntry(mSignerEngine.outputJarEntry(entry.getName()), inputEntry);
+      }
+    }
+  }
 
-      mOutputStream.writeInt(entry.getCrc());
-      mOutputStream.writeInt(entry.getCompressedSize());
-      mOutputStream.writeInt(entry.getSize());
+  private void writeLocalHeader(XEntry xentry) throws IOException {
+    final ZipInputEntry entry = xentry.entry();
+    final boolean zip64 = isZip64(entry);
+    if (zip64) {
+      requireUnsigned(entry.getName() + " is 4GB or larger");
+    }
 
-      mOutputStream.writeShort(entry.getName().getBytes(StandardCharsets.UTF_8).length);
-      mOutputStream.writeShort(entry.getExtra().length);
-      mOutputStream.write(entry.getName().getBytes(StandardCharsets.UTF_8));
-      mOutputStream.write(entry.getExtra(), 0, entry.getExtra().length);
+    mOutputStream.writeInt(ZipInput.LOCAL_HEADER_SIGNATURE);
+    mOutputStream.writeShort(zip64 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION);
+    mOutputStream.writeShort(xentry.flags());
+    mOutputStream.writeShort(entry.method());
+    mOutputStream.writeShort(entry.time());
+    mOutputStream.writeShort(entry.date());
+    mOutputStream.writeInt(entry.crc());
+    mOutputStream.writeInt(zip64 ? ZipInput.ZIP64_MAGIC : entry.compressedSize());
+    mOutputStream.writeInt(zip64 ? ZipInput.ZIP64_MAGIC : entry.size());
+    mOutputStream.writeShort(entry.name().length);
+    mOutputStream.writeShort(xentry.extra().length + xentry.padding());
+    mOutputStream.write(entry.name());
+    mOutputStream.write(xentry.extra());
+    mOutputStream.writeZeros(xentry.padding());
+  }
 
-      mInputFileOffset += inputEntryHeaderSize;
+  /**
+   * Feeds the uncompressed data of an input entry to the signer engine when it asks for it.
+   */
+  private void inspectEntry(ApkSignerEngine.InspectJarEntryRequest request, ZipInputEntry entry) throws IOException {
+    if (request == null) {
+      return;
+    }
 
-      final long sizeToCopy;
-      if ((flags & ZIP_ENTRY_USES_DATA_DESCR) != 0)
-        sizeToCopy = (entry.isDirectory() ? 0 : entry.getCompressedSize()) + ZIP_ENTRY_DATA_DESCRIPTOR_LEN;
-      else
-        sizeToCopy = entry.isDirectory() ? 0 : entry.getCompressedSize();
+    if (mInflateBuffer == null) {
+      mInflateBuffer = ByteBuffer.allocate(FILE_BUFFER);
+    }
+    final DataSink sink = request.getDataSink();
+    mZipInput.readUncompressed(entry, mInflateBuffer, sink::consume);
+    request.done();
+  }
 
-      if (sizeToCopy > 0) {
-        mRafInput.seek(mInputFileOffset);
+  /**
+   * Writes the JAR signature files (v1 scheme) generated by the signer engine, if it generates any.
+   */
+  private void writeSignatureEntries() throws IOException {
+    final ApkSignerEngine.OutputJarSignatureRequest request;
+    try {
+      request = mSignerEngine.outputJarEntries();
+    } catch (Exception e) {
+      throw new IOException("Failed to generate JAR signature", e);
+    }
+    if (request == null) {
+      return;
+    }
 
-        long totalSizeCopied = 0;
-        final byte[] buf = new byte[FILE_BUFFER];
-        while (totalSizeCopied < sizeToCopy) {
-          int read = mRafInput.read(buf, 0, (int) Math.min(FILE_BUFFER, sizeToCopy - totalSizeCopied));
-          if (read <= 0)
-            break;
+    final int time = mXEntries.isEmpty() ? 0 : mXEntries.get(0).entry().time();
+    final int date = mXEntries.isEmpty() ? DOS_EPOCH_DATE : mXEntries.get(0).entry().date();
+    for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry jarEntry : request.getAdditionalJarEntries()) {
+      final byte[] data = jarEntry.getData();
 
-          mOutputStream.write(buf, 0, read);
-          totalSizeCopied += read;
-        }
+      final CRC32 crc = new CRC32();
+      crc.update(data);
+      final byte[] compressed = deflate(data);
+
+      final ZipInputEntry entry = new ZipInputEntry(jarEntry.getName().getBytes(StandardCharsets.UTF_8), 1 << 11,
+          ZipInputEntry.DEFLATED, time, date, crc.getValue(), compressed.length, data.length, EMPTY, EMPTY, -1);
+
+      final XEntry xentry = new XEntry(entry, EMPTY, mOutputStream.totalWritten(), 1 << 11, 0);
+      mXEntries.add(xentry);
+      writeLocalHeader(xentry);
+      mOutputStream.write(compressed);
+
+      final ApkSignerEngine.InspectJarEntryRequest inspectRequest = mSignerEngine.outputJarEntry(jarEntry.getName());
+      if (inspectRequest != null) {
+        inspectRequest.getDataSink().consume(data, 0, data.length);
+        inspectRequest.done();
       }
+    }
+    request.done();
+  }
 
-      mInputFileOffset += sizeToCopy;
+  private static byte[] deflate(byte[] data) {
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+      final byte[] buf = new byte[FILE_BUFFER];
+      while (!deflater.finished()) {
+        final int length = deflater.deflate(buf);
+        out.write(buf, 0, length);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
     }
   }
 
   private void buildCentralDirectory() throws IOException {
     final long centralDirOffset = mOutputStream.totalWritten();
 
+    final ByteArrayOutputStream centralDirBytes = new ByteArrayOutputStream();
+    final FilterOutputStreamEx centralDir = new FilterOutputStreamEx(centralDirBytes);
+    final long[] zip64Values = new long[3];
     for (XEntry xentry : mXEntries) {
-      final ZipEntry entry = xentry.entry();
-
-      final CalenderDateTime time = new CalenderDateTime(entry.getTime());
-
-      mOutputStream.writeInt(ZipFile.CENSIG);
-      mOutputStream.writeShort(ZIP_ENTRY_VERSION);
-      mOutputStream.writeShort(ZIP_ENTRY_VERSION);
-      mOutputStream.writeShort(xentry.flags());
-      mOutputStream.writeShort(entry.getMethod());
-      mOutputStream.writeShort(time.getTime());
-      mOutputStream.writeShort(time.getModDate());
-      mOutputStream.writeInt(entry.getCrc());
-      mOutputStream.writeInt(entry.getCompressedSize());
-      mOutputStream.writeInt(entry.getSize());
-      final byte[] nameBytes = entry.getName().getBytes(StandardCharsets.UTF_8);
-      mOutputStream.writeShort(nameBytes.length);
-      mOutputStream.writeShort(entry.getExtra() != null ? entry.getExtra().length - xentry.padding() : 0);
-      final byte[] commentBytes;
-      if (entry.getComment() != null) {
-        commentBytes = entry.getComment().getBytes(StandardCharsets.UTF_8);
-        mOutputStream.writeShort(Math.min(commentBytes.length, 0xffff));
-      } else {
-        commentBytes = null;
-        mOutputStream.writeShort(0);
+      final ZipInputEntry entry = xentry.entry();
+
+      // Only the values which don't fit in the header go in the ZIP64 extra field, in this order.
+      int zip64Count = 0;
+      final boolean zip64Size = entry.size() >= ZipInput.ZIP64_MAGIC;
+      final boolean zip64CompressedSize = entry.compressedSize() >= ZipInput.ZIP64_MAGIC;
+      final boolean zip64Offset = xentry.headerOffset() >= ZipInput.ZIP64_MAGIC;
+      if (zip64Size) {
+        zip64Values[zip64Count++] = entry.size();
       }
-      mOutputStream.writeShort(0);
-      mOutputStream.writeShort(0);
-      mOutputStream.writeInt(0);
-      mOutputStream.writeInt(xentry.headerOffset());
-      mOutputStream.write(nameBytes);
-      if (entry.getExtra() != null)
-        mOutputStream.write(entry.getExtra(), 0, entry.getExtra().length - xentry.padding());
-      if (commentBytes != null)
-        mOutputStream.write(commentBytes, 0, Math.min(commentBytes.length, 0xffff));
+      if (zip64CompressedSize) {
+        zip64Values[zip64Count++] = entry.compressedSize();
+      }
+      if (zip64Offset) {
+        zip64Values[zip64Count++] = xentry.headerOffset();
+      }
+      byte[] extra = ZipInput.stripZip64Extra(entry.extra());
+      if (zip64Count > 0) {
+        requireUnsigned("entries are past 4GB");
+        extra = withZip64Extra(extra, zip64Values, zip64Count);
+      }
+      final int version = zip64Count > 0 ? ZIP64_ENTRY_VERSION : ZIP_ENTRY_VERSION;
+
+      centralDir.writeInt(ZipInput.CENTRAL_HEADER_SIGNATURE);
+      centralDir.writeShort(version);
+      centralDir.writeShort(version);
+      centralDir.writeShort(xentry.flags());
+      centralDir.writeShort(entry.method());
+      centralDir.writeShort(entry.time());
+      centralDir.writeShort(entry.date());
+      centralDir.writeInt(entry.crc());
+      centralDir.writeInt(zip64CompressedSize ? ZipInput.ZIP64_MAGIC : entry.compressedSize());
+      centralDir.writeInt(zip64Size ? ZipInput.ZIP64_MAGIC : entry.size());
+      centralDir.writeShort(entry.name().length);
+      centralDir.writeShort(extra.length);
+      centralDir.writeShort(entry.comment().length);
+      centralDir.writeShort(0);
+      centralDir.writeShort(0);
+      centralDir.writeInt(0);
+      centralDir.writeInt(zip64Offset ? ZipInput.ZIP64_MAGIC : xentry.headerOffset());
+      centralDir.write(entry.name());
+      centralDir.write(extra);
+      centralDir.write(entry.comment());
     }
 
-    final long centralDirSize = mOutputStream.totalWritten() - centralDirOffset;
-
-    final int entryCount = mXEntries.size();
-
-    mOutputStream.writeInt(ZipFile.ENDSIG);
-    mOutputStream.writeShort(0);
-    mOutputStream.writeShort(0);
-    mOutputStream.writeShort(entryCount);
-    mOutputStream.writeShort(entryCount);
-    mOutputStream.writeInt(centralDirSize);
-    mOutputStream.writeInt(centralDirOffset);
-    if (mZipFile.getComment() != null) {
-      final byte[] bytes = mZipFile.getComment().getBytes(StandardCharsets.UTF_8);
-      mOutputStream.writeShort(bytes.length);
-      mOutputStream.write(bytes);
-    } else {
-      mOutputStream.writeShort(0);
+    centralDir.flush();
+    final long centralDirSize = centralDir.totalWritten();
+    long outputCentralDirOffset = centralDirOffset;
+
+    if (mSignerEngine != null) {
+      // The APK signing block goes between the entries and the central directory, and is computed over both.
+      mOutputStream.flush();
+      final ApkSignerEngine.OutputApkSigningBlockRequest2 request;
+      try (RandomAccessFile output = new RandomAccessFile(mOutputFile, "r")) {
+        request = mSignerEngine.outputZipSections2(
+            DataSources.asDataSource(output, 0, centralDirOffset),
+            DataSources.asDataSource(ByteBuffer.wrap(centralDirBytes.toByteArray())),
+            DataSources.asDataSource(ByteBuffer.wrap(buildEndOfCentralDirectory(centralDirSize, centralDirOffset))));
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException("Failed to generate APK signing block", e);
+      }
+
+      if (request != null) {
+        mOutputStream.write(new byte[request.getPaddingSizeBeforeApkSigningBlock()]);
+        mOutputStream.write(request.getApkSigningBlock());
+        outputCentralDirOffset = mOutputStream.totalWritten();
+        request.done();
+      }
     }
 
+    centralDirBytes.writeTo(mOutputStream);
+    mOutputStream.write(buildEndOfCentralDirectory(centralDirSize, outputCentralDirOffset));
     mOutputStream.flush();
-  }
 
-  private static class CalenderDateTime {
-    private final int modDate;
-    private final int time;
-
-    public CalenderDateTime(final long entryTime) {
-      int modDate;
-      int time;
-      GregorianCalendar cal = new GregorianCalendar();
-      cal.setTime(new Date(entryTime));
-      int year = cal.get(Calendar.YEAR);
-      if (year < 1980) {
-        modDate = 0x21;
-        time = 0;
-      } else {
-        modDate = cal.get(Calendar.DATE);
-        modDate = (cal.get(Calendar.MONTH) + 1 << 5) | modDate;
-        modDate = ((cal.get(Calendar.YEAR) - 1980) << 9) | modDate;
-        time = cal.get(Calendar.SECOND) >> 1;
-        time = (cal.get(Calendar.MINUTE) << 5) | time;
-        time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | time;
-      }
+    if (mSignerEngine != null) {
+      mSignerEngine.outputDone();
+    }
+  }
 
-      this.modDate = modDate;
-      this.time = time;
+  private byte[] buildEndOfCentralDirectory(long centralDirSize, long centralDirOffset) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final FilterOutputStreamEx eocd = new FilterOutputStreamEx(bytes);
+    final long entryCount = mXEntries.size();
+    final boolean zip64 = entryCount >= ZipInput.ZIP64_MAGIC_COUNT || centralDirSize >= ZipInput.ZIP64_MAGIC
+        || centralDirOffset >= ZipInput.ZIP64_MAGIC;
+
+    if (zip64) {
+      requireUnsigned("the archive has more than 65534 entries or a central directory past 4GB");
+
+      final long zip64EocdOffset = centralDirOffset + centralDirSize;
+      eocd.writeInt(ZipInput.ZIP64_END_OF_CENTRAL_DIR_SIGNATURE);
+      eocd.writeLong(ZipInput.ZIP64_END_OF_CENTRAL_DIR_LEN - 12);
+      eocd.writeShort(ZIP64_ENTRY_VERSION);
+      eocd.writeShort(ZIP64_ENTRY_VERSION);
+      eocd.writeInt(0);
+      eocd.writeInt(0);
+      eocd.writeLong(entryCount);
+      eocd.writeLong(entryCount);
+      eocd.writeLong(centralDirSize);
+      eocd.writeLong(centralDirOffset);
+
+      eocd.writeInt(ZipInput.ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE);
+      eocd.writeInt(0);
+      eocd.writeLong(zip64EocdOffset);
+      eocd.writeInt(1);
     }
 
-    public int getModDate() {
-      return modDate;
+    eocd.writeInt(ZipInput.END_OF_CENTRAL_DIR_SIGNATURE);
+    eocd.writeShort(0);
+    eocd.writeShort(0);
+    eocd.writeShort(zip64 ? ZipInput.ZIP64_MAGIC_COUNT : (int) entryCount);
+    eocd.writeShort(zip64 ? ZipInput.ZIP64_MAGIC_COUNT : (int) entryCount);
+    eocd.writeInt(zip64 ? ZipInput.ZIP64_MAGIC : centralDirSize);
+    eocd.writeInt(zip64 ? ZipInput.ZIP64_MAGIC : centralDirOffset);
+    eocd.writeShort(mZipInput.comment().length);
+    eocd.write(mZipInput.comment());
+    eocd.flush();
+    return bytes.toByteArray();
+  }
+
+  private static boolean isZip64(ZipInputEntry entry) {
+    return entry.size() >= ZipInput.ZIP64_MAGIC || entry.compressedSize() >= ZipInput.ZIP64_MAGIC;
+  }
+
+  /**
+   * @return The extra field with a ZIP64 extended information field holding the first count values prepended.
+   */
+  private static byte[] withZip64Extra(byte[] extra, long[] values, int count) {
+    final ByteBuffer buffer = ByteBuffer.allocate(4 + count * 8 + extra.length).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putShort((short) ZipInput.ZIP64_EXTRA_ID);
+    buffer.putShort((short) (count * 8));
+    for (int i = 0; i < count; i++) {
+      buffer.putLong(values[i]);
     }
+    buffer.put(extra);
+    return buffer.array();
+  }
 
-    public int getTime() {
-      return time;
+  /**
+   * The APK signature schemes rely on the plain end of central directory record, so a ZIP64 APK can't be signed.
+   */
+  private void requireUnsigned(String reason) throws ZipException {
+    if (mSignerEngine != null) {
+      throw new ZipException("Can't sign an APK which needs ZIP64, " + reason);
     }
   }
 }
-
@@ -0,0 +1,354 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A memory-mapped zip reader which parses the end of central directory and the central directory once.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile}, entry data is located through the real local header of every entry, so local
+ * extra fields which differ from the central ones, gaps between entries and data descriptors are all handled, and the
+ * compressed data of an entry is handed out as a slice of the mapping rather than copied.
+ * <p>
+ * ZIP64 archives are supported. Files up to 2GB are mapped at once, larger ones are mapped a window at a time.
+ */
+public class ZipInput implements Closeable {
+  public static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  public static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  public static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+  public static final int ZIP64_END_OF_CENTRAL_DIR_SIGNATURE = 0x06064b50;
+  public static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE = 0x07064b50;
+  public static final int LOCAL_HEADER_LEN = 30;
+  public static final int CENTRAL_HEADER_LEN = 46;
+  public static final int END_OF_CENTRAL_DIR_LEN = 22;
+  public static final int ZIP64_END_OF_CENTRAL_DIR_LEN = 56;
+  public static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_LEN = 20;
+  public static final int ZIP64_EXTRA_ID = 0x0001;
+  public static final long ZIP64_MAGIC = 0xffffffffL;
+  public static final int ZIP64_MAGIC_COUNT = 0xffff;
+  private static final int MAX_COMMENT_LEN = 0xffff;
+  private static final long MAX_WINDOW = 1L << 30;
+
+  private final FileChannel mChannel;
+  private final long mSize;
+  private final ByteBuffer mBuffer;
+  private final List<ZipInputEntry> mEntries;
+  private final long mCentralDirOffset;
+  private final byte[] mComment;
+
+  public ZipInput(File file) throws IOException {
+    mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      mSize = mChannel.size();
+      mBuffer = mSize <= Integer.MAX_VALUE ? map(0, mSize) : null;
+
+      final long tailOffset = Math.max(0, mSize - END_OF_CENTRAL_DIR_LEN - MAX_COMMENT_LEN - ZIP64_END_OF_CENTRAL_DIR_LOCATOR_LEN);
+      final ByteBuffer tail = read(tailOffset, (int) (mSize - tailOffset));
+      final int eocd = findEndOfCentralDirectory(tail);
+      mComment = bytes(tail, eocd + END_OF_CENTRAL_DIR_LEN, tail.getShort(eocd + 20) & 0xffff);
+
+      long entryCount = tail.getShort(eocd + 10) & 0xffff;
+      long centralDirSize = tail.getInt(eocd + 12) & 0xffffffffL;
+      long centralDirOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+      final int locator = eocd - ZIP64_END_OF_CENTRAL_DIR_LOCATOR_LEN;
+      if (locator >= 0 && tail.getInt(locator) == ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIGNATURE) {
+        final long zip64EocdOffset = tail.getLong(locator + 8);
+        final ByteBuffer zip64Eocd = read(zip64EocdOffset, ZIP64_END_OF_CENTRAL_DIR_LEN);
+        if (zip64Eocd.getInt(0) != ZIP64_END_OF_CENTRAL_DIR_SIGNATURE) {
+          throw new ZipException("Invalid ZIP64 end of central directory record at offset " + zip64EocdOffset);
+        }
+        entryCount = zip64Eocd.getLong(32);
+        centralDirSize = zip64Eocd.getLong(40);
+        centralDirOffset = zip64Eocd.getLong(48);
+      }
+
+      mCentralDirOffset = centralDirOffset;
+      if (centralDirOffset < 0 || centralDirSize < 0 || centralDirOffset + centralDirSize > mSize) {
+        throw new ZipException("Central directory extends past the end of the file");
+      }
+      if (centralDirSize > Integer.MAX_VALUE || entryCount > Integer.MAX_VALUE) {
+        throw new ZipException("Central directory is too large: " + centralDirSize + " bytes");
+      }
+      mEntries = Collections.unmodifiableList(readCentralDirectory(slice(centralDirOffset, centralDirSize), (int) entryCount));
+    } catch (IOException | RuntimeException e) {
+      mChannel.close();
+      throw e;
+    }
+  }
+
+  public List<ZipInputEntry> entries() {
+    return mEntries;
+  }
+
+  /**
+   * @return The archive comment, empty if there is none.
+   */
+  public byte[] comment() {
+    return mComment;
+  }
+
+  /**
+   * @return The offset of the central directory, which is also where the entry data of the archive ends.
+   */
+  public long centralDirOffset() {
+    return mCentralDirOffset;
+  }
+
+  public FileChannel channel() {
+    return mChannel;
+  }
+
+  /**
+   * @return The extra field of the entry's local header.
+   */
+  public byte[] localExtra(ZipInputEntry entry) throws IOException {
+    final ByteBuffer header = localHeader(entry);
+    final int nameLength = header.getShort(26) & 0xffff;
+    final int extraLength = header.getShort(28) & 0xffff;
+    final ByteBuffer extra = read(entry.localHeaderOffset() + LOCAL_HEADER_LEN + nameLength, extraLength);
+    return bytes(extra, 0, extraLength);
+  }
+
+  /**
+   * @return The offset of the entry's compressed data in the zip file.
+   */
+  public long dataOffset(ZipInputEntry entry) throws IOException {
+    final ByteBuffer header = localHeader(entry);
+    final long dataOffset = entry.localHeaderOffset() + LOCAL_HEADER_LEN + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    if (dataOffset + entry.compressedSize() > mCentralDirOffset) {
+      throw new ZipException("Entry data extends into the central directory: " + entry.getName());
+    }
+    return dataOffset;
+  }
+
+  /**
+   * @return A read-only slice of the mapping holding the entry's compressed data.
+   * @throws ZipException If the entry is 2GB or larger, use {@link #readUncompressed} to stream those.
+   */
+  public ByteBuffer data(ZipInputEntry entry) throws IOException {
+    if (entry.compressedSize() > Integer.MAX_VALUE) {
+      throw new ZipException("Entry is too large to slice: " + entry.getName());
+    }
+    return slice(dataOffset(entry), entry.compressedSize());
+  }
+
+  /**
+   * Inflates the entry, if it is compressed, and passes its data to the consumer in chunks.
+   */
+  public void readUncompressed(ZipInputEntry entry, ByteBuffer chunk, ChunkConsumer consumer) throws IOException {
+    if (entry.method() != ZipInputEntry.STORED && entry.method() != ZipInputEntry.DEFLATED) {
+      throw new ZipException("Unsupported compression method " + entry.method() + ": " + entry.getName());
+    }
+
+    final long dataOffset = dataOffset(entry);
+    if (entry.compressedSize() == 0 && entry.size() == 0) {
+      return;
+    }
+    if (entry.method() == ZipInputEntry.STORED) {
+      for (long position = 0; position < entry.compressedSize(); position += MAX_WINDOW) {
+        consumer.accept(slice(dataOffset + position, Math.min(MAX_WINDOW, entry.compressedSize() - position)));
+      }
+      return;
+    }
+
+    final Inflater inflater = new Inflater(true);
+    try {
+      for (long position = 0; position < entry.compressedSize() && !inflater.finished(); position += MAX_WINDOW) {
+        inflater.setInput(slice(dataOffset + position, Math.min(MAX_WINDOW, entry.compressedSize() - position)));
+        while (!inflater.finished() && !inflater.needsInput()) {
+          chunk.clear();
+          final int length = inflater.inflate(chunk);
+          if (length == 0 && inflater.needsDictionary()) {
+            throw new ZipException("Deflate data needs a preset dictionary: " + entry.getName());
+          }
+          consumer.accept(chunk.flip());
+        }
+      }
+      if (!inflater.finished()) {
+        throw new ZipException("Truncated deflate data: " + entry.getName());
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException("Invalid deflate data in " + entry.getName() + ": " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    mChannel.close();
+  }
+
+  /**
+   * Strips the ZIP64 extended information from an extra field, since it is only valid for the sizes and offsets it was
+   * written with.
+   */
+  public static byte[] stripZip64Extra(byte[] extra) {
+    final ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    int offset = 0;
+    while (offset + 4 <= extra.length) {
+      final int id = buffer.getShort(offset) & 0xffff;
+      final int length = buffer.getShort(offset + 2) & 0xffff;
+      final int end = Math.min(extra.length, offset + 4 + length);
+      if (id == ZIP64_EXTRA_ID) {
+        final byte[] stripped = new byte[extra.length - (end - offset)];
+        System.arraycopy(extra, 0, stripped, 0, offset);
+        System.arraycopy(extra, end, stripped, offset, extra.length - end);
+        return stripped;
+      }
+      offset = end;
+    }
+    return extra;
+  }
+
+  private static int findEndOfCentralDirectory(ByteBuffer tail) throws ZipException {
+    for (int offset = tail.limit() - END_OF_CENTRAL_DIR_LEN; offset >= 0; offset--) {
+      if (tail.getInt(offset) == END_OF_CENTRAL_DIR_SIGNATURE
+          && offset + END_OF_CENTRAL_DIR_LEN + (tail.getShort(offset + 20) & 0xffff) == tail.limit()) {
+        return offset;
+      }
+    }
+    throw new ZipException("End of central directory record not found");
+  }
+
+  private static List<ZipInputEntry> readCentralDirectory(ByteBuffer centralDir, int entryCount) throws ZipException {
+    final List<ZipInputEntry> entries = new ArrayList<>(entryCount);
+    int offset = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (offset + CENTRAL_HEADER_LEN > centralDir.limit() || centralDir.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory header at offset " + offset);
+      }
+      final int nameLength = centralDir.getShort(offset + 28) & 0xffff;
+      final int extraLength = centralDir.getShort(offset + 30) & 0xffff;
+      final int commentLength = centralDir.getShort(offset + 32) & 0xffff;
+      final int nameOffset = offset + CENTRAL_HEADER_LEN;
+      final byte[] extra = bytes(centralDir, nameOffset + nameLength, extraLength);
+
+      long compressedSize = centralDir.getInt(offset + 20) & 0xffffffffL;
+      long size = centralDir.getInt(offset + 24) & 0xffffffffL;
+      long localHeaderOffset = centralDir.getInt(offset + 42) & 0xffffffffL;
+      if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+        // The ZIP64 extra field only holds the values which didn't fit, in this order.
+        final ByteBuffer zip64 = findZip64Extra(extra);
+        if (size == ZIP64_MAGIC) {
+          size = zip64Field(zip64);
+        }
+        if (compressedSize == ZIP64_MAGIC) {
+          compressedSize = zip64Field(zip64);
+        }
+        if (localHeaderOffset == ZIP64_MAGIC) {
+          localHeaderOffset = zip64Field(zip64);
+        }
+      }
+
+      entries.add(new ZipInputEntry(
+          bytes(centralDir, nameOffset, nameLength),
+          centralDir.getShort(offset + 8) & 0xffff,
+          centralDir.getShort(offset + 10) & 0xffff,
+          centralDir.getShort(offset + 12) & 0xffff,
+          centralDir.getShort(offset + 14) & 0xffff,
+          centralDir.getInt(offset + 16) & 0xffffffffL,
+          compressedSize,
+          size,
+          extra,
+          bytes(centralDir, nameOffset + nameLength + extraLength, commentLength),
+          localHeaderOffset));
+      offset = nameOffset + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static ByteBuffer findZip64Extra(byte[] extra) throws ZipException {
+    final ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    int offset = 0;
+    while (offset + 4 <= extra.length) {
+      final int id = buffer.getShort(offset) & 0xffff;
+      final int length = buffer.getShort(offset + 2) & 0xffff;
+      if (id == ZIP64_EXTRA_ID && offset + 4 + length <= extra.length) {
+        return buffer.slice(offset + 4, length).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      offset += 4 + length;
+    }
+    throw new ZipException("Missing ZIP64 extended information extra field");
+  }
+
+  private static long zip64Field(ByteBuffer zip64) throws ZipException {
+    if (zip64.remaining() < 8) {
+      throw new ZipException("Truncated ZIP64 extended information extra field");
+    }
+    final long value = zip64.getLong();
+    if (value < 0) {
+      throw new ZipException("Invalid ZIP64 value: " + Long.toUnsignedString(value));
+    }
+    return value;
+  }
+
+  private ByteBuffer localHeader(ZipInputEntry entry) throws IOException {
+    final long offset = entry.localHeaderOffset();
+    if (offset < 0 || offset + LOCAL_HEADER_LEN > mCentralDirOffset) {
+      throw new ZipException("Invalid local header for entry: " + entry.getName());
+    }
+    final ByteBuffer header = read(offset, LOCAL_HEADER_LEN);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header for entry: " + entry.getName());
+    }
+    return header;
+  }
+
+  /**
+   * @return The bytes at the offset, sliced from the mapping when the whole file is mapped.
+   */
+  private ByteBuffer read(long offset, int length) throws IOException {
+    if (offset < 0 || offset + length > mSize) {
+      throw new ZipException("Zip record extends past the end of the file");
+    }
+    if (mBuffer != null) {
+      return mBuffer.slice((int) offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (mChannel.read(buffer, offset + buffer.position()) == -1) {
+        throw new EOFException();
+      }
+    }
+    return buffer.flip();
+  }
+
+  private ByteBuffer slice(long offset, long length) throws IOException {
+    if (mBuffer != null) {
+      return read(offset, (int) length);
+    }
+    return map(offset, length);
+  }
+
+  private ByteBuffer map(long offset, long length) throws IOException {
+    return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static byte[] bytes(ByteBuffer buffer, int offset, int length) throws ZipException {
+    if (offset + length > buffer.limit()) {
+      throw new ZipException("Zip record extends past the end of the file");
+    }
+    final byte[] bytes = new byte[length];
+    buffer.get(offset, bytes);
+    return bytes;
+  }
+
+  @FunctionalInterface
+  public interface ChunkConsumer {
+    void accept(ByteBuffer chunk) throws IOException;
+  }
+}
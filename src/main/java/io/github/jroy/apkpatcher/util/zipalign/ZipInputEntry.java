@@ -0,0 +1,22 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An entry as it is recorded in the central directory of a zip file.
+ *
+ * @param name              The raw entry name.
+ * @param time              The DOS last modification time.
+ * @param date              The DOS last modification date.
+ * @param extra             The central directory extra field, which may differ from the local one.
+ * @param localHeaderOffset The offset of the entry's local header in the zip file.
+ */
+public record ZipInputEntry(byte[] name, int flags, int method, int time, int date, long crc, long compressedSize,
+                            long size, byte[] extra, byte[] comment, long localHeaderOffset) {
+  public static final int STORED = 0;
+  public static final int DEFLATED = 8;
+
+  public String getName() {
+    return new String(name, StandardCharsets.UTF_8);
+  }
+}
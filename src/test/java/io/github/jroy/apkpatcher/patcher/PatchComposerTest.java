@@ -0,0 +1,170 @@
+package io.github.jroy.apkpatcher.patcher;
+
+import io.github.jroy.apkpatcher.util.SearchNextLineToken;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Scanner;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PatchComposerTest {
+  private static final String NL = System.lineSeparator();
+  private static final String METHOD = String.join("\n",
+      ".class public Lcom/foo/Bar;",
+      ".method public foo()V",
+      "    const-string v0, \"tag\"",
+      "    invoke-static {v0}, Landroid/util/Log;->d(Ljava/lang/String;)I",
+      "    return-void",
+      ".end method",
+      "");
+
+  @TempDir
+  File tmp;
+
+  @Test
+  void readAheadLinesReachTheNextPatch() throws IOException {
+    // A reads ahead from the method header to its return, past the line B attaches to.
+    final Supplier<List<Patch>> patches = () -> List.of(insertBeforeReturn("\\s*return-void"), removeLog());
+
+    final boolean[] results = assertSameAsSequential(METHOD, patches);
+
+    assertArrayEquals(new boolean[]{true, true}, results);
+    assertEquals(String.join(NL,
+        ".class public Lcom/foo/Bar;",
+        ".method public foo()V",
+        "    const-string v0, \"tag\"",
+        "    # removed log",
+        "    # before return",
+        "    return-void",
+        ".end method",
+        ""), read("composed.smali"));
+  }
+
+  @Test
+  void lineOfFailedPatchReachesTheNextPatch() throws IOException {
+    // A fails on the method header without writing it, B attaches to the same header.
+    final Supplier<List<Patch>> patches = () -> List.of(failOnMethod(), commentMethod());
+
+    final boolean[] results = assertSameAsSequential(METHOD, patches);
+
+    assertArrayEquals(new boolean[]{true, true}, results);
+    assertEquals(String.join(NL,
+        ".class public Lcom/foo/Bar;",
+        ".method public foo()V",
+        "    # commented",
+        "    const-string v0, \"tag\"",
+        "    invoke-static {v0}, Landroid/util/Log;->d(Ljava/lang/String;)I",
+        "    return-void",
+        ".end method",
+        ""), read("composed.smali"));
+  }
+
+  @Test
+  void failedReadAheadKeepsLinesForTheNextPatch() throws IOException {
+    final Supplier<List<Patch>> patches = () -> List.of(insertBeforeReturn("\\s*missing"), removeLog());
+
+    assertSameAsSequential(METHOD, patches);
+  }
+
+  @Test
+  void singlePatchWritesWhatTheOldApplyWrote() throws IOException {
+    // The rewrite used to collect the lines and write each followed by the line separator, whatever the file used.
+    final File file = new File(tmp, "single.smali");
+    Files.writeString(file.toPath(), ".class public Lcom/foo/Bär;\r\n.method public foo()V\r\n    const-string v0, \"ü\"\r\n"
+        + "    invoke-static {v0}, Landroid/util/Log;->d(Ljava/lang/String;)I\r\n    return-void\r\n.end method", StandardCharsets.UTF_8);
+
+    final boolean applied = removeLog().apply(file);
+
+    assertEquals(true, applied);
+    assertArrayEquals((".class public Lcom/foo/Bär;" + NL + ".method public foo()V" + NL + "    const-string v0, \"ü\"" + NL
+        + "    # removed log" + NL + "    return-void" + NL + ".end method" + NL).getBytes(StandardCharsets.UTF_8),
+        Files.readAllBytes(file.toPath()));
+  }
+
+  /**
+   * Composes fresh patches on one copy of the content and applies fresh patches one after another on another copy.
+   *
+   * @return The results of the composed patches.
+   */
+  private boolean[] assertSameAsSequential(String content, Supplier<List<Patch>> patches) throws IOException {
+    final File composed = new File(tmp, "composed.smali");
+    final File sequential = new File(tmp, "sequential.smali");
+    Files.writeString(composed.toPath(), content, StandardCharsets.UTF_8);
+    Files.writeString(sequential.toPath(), content, StandardCharsets.UTF_8);
+
+    final boolean[] composedResults = PatchComposer.apply(composed, patches.get());
+    final List<Patch> sequentialPatches = patches.get();
+    final boolean[] sequentialResults = new boolean[sequentialPatches.size()];
+    for (int i = 0; i < sequentialPatches.size(); i++) {
+      sequentialResults[i] = sequentialPatches.get(i).apply(sequential);
+    }
+
+    assertArrayEquals(sequentialResults, composedResults);
+    assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(composed.toPath()));
+    return composedResults;
+  }
+
+  private String read(String name) throws IOException {
+    return Files.readString(new File(tmp, name).toPath(), StandardCharsets.UTF_8);
+  }
+
+  private static Patch insertBeforeReturn(String returnPattern) {
+    final Patch patch = new Patch("insert-before-return", "foo");
+    patch.addAttachmentPoint(new PatchAttachPoint(patch, "\\.method public foo\\(\\)V") {
+      @Override
+      protected boolean applyLine(String matchedLine, Scanner scanner) {
+        final SearchNextLineToken token = searchOrNextLine(scanner, returnPattern);
+        if (token == null) {
+          return false;
+        }
+        patch.addPatchedLine("    # before return");
+        patch.addPatchedLine(token.matchedLine());
+        return true;
+      }
+    });
+    return patch;
+  }
+
+  private static Patch removeLog() {
+    final Patch patch = new Patch("remove-log", "Log");
+    patch.addAttachmentPoint(new PatchAttachPoint(patch, "\\s*invoke-static .*Landroid/util/Log;.*", false) {
+      @Override
+      protected boolean applyLine(String matchedLine, Scanner scanner) {
+        patch.addPatchedLine("    # removed log");
+        return true;
+      }
+    });
+    return patch;
+  }
+
+  private static Patch failOnMethod() {
+    final Patch patch = new Patch("fail-on-method", "foo");
+    patch.addAttachmentPoint(new PatchAttachPoint(patch, "\\.method public foo\\(\\)V", false) {
+      @Override
+      protected boolean applyLine(String matchedLine, Scanner scanner) {
+        return false;
+      }
+    });
+    return patch;
+  }
+
+  private static Patch commentMethod() {
+    final Patch patch = new Patch("comment-method", "foo");
+    patch.addAttachmentPoint(new PatchAttachPoint(patch, "\\.method public foo\\(\\)V") {
+      @Override
+      protected boolean applyLine(String matchedLine, Scanner scanner) {
+        patch.addPatchedLine("    # commented");
+        return true;
+      }
+    });
+    return patch;
+  }
+}
@@ -0,0 +1,147 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipAlignerTest {
+  @TempDir
+  File tmp;
+
+  @Test
+  void alignsMixedEntriesAndKeepsComment() throws IOException {
+    final Map<String, byte[]> entries = ZipTestFiles.mixedEntries();
+    final File input = new File(tmp, "input.zip");
+    final File output = new File(tmp, "output.zip");
+    ZipTestFiles.write(input, entries, ZipTestFiles.COMMENT);
+
+    new ZipAligner(input, output).run();
+
+    ZipTestFiles.assertContents(output, entries);
+    assertEquals(ZipTestFiles.COMMENT, ZipTestFiles.comment(output));
+    assertTrue(ZipAligner.verify(output, AlignmentPolicy.DEFAULT).isEmpty());
+  }
+
+  @Test
+  void alignsNativeLibrariesToPages() throws IOException {
+    final File input = new File(tmp, "input.zip");
+    final File output = new File(tmp, "output.zip");
+    ZipTestFiles.write(input, ZipTestFiles.mixedEntries(), null);
+
+    // The odd sized entries in front of them leave the libraries off a page boundary in the input.
+    final List<String> misaligned = ZipAligner.verify(input, AlignmentPolicy.DEFAULT);
+    assertTrue(misaligned.contains("lib/arm64-v8a/libfoo.so"));
+    assertTrue(misaligned.contains("lib/armeabi-v7a/libbar.so"));
+
+    new ZipAligner(input, output).run();
+
+    assertTrue(ZipAligner.verify(output, AlignmentPolicy.DEFAULT).isEmpty());
+    try (ZipInput zipInput = new ZipInput(output)) {
+      for (ZipInputEntry entry : zipInput.entries()) {
+        if (entry.getName().endsWith(".so")) {
+          assertEquals(0, zipInput.dataOffset(entry) % AlignmentPolicy.PAGE_ALIGNMENT, entry.getName());
+        }
+      }
+    }
+  }
+
+  @Test
+  void verifyReportsEntriesOffTheirAlignment() throws IOException {
+    final File input = new File(tmp, "input.zip");
+    final File output = new File(tmp, "output.zip");
+    ZipTestFiles.write(input, ZipTestFiles.mixedEntries(), null);
+
+    new ZipAligner(input, output, null, AlignmentPolicy.of(ZipAligner.DEFAULT_ALIGNMENT)).run();
+
+    // Only aligned to 4 bytes, so the libraries don't start on a page boundary.
+    final List<String> misaligned = ZipAligner.verify(output, AlignmentPolicy.DEFAULT);
+    assertFalse(misaligned.isEmpty());
+    assertTrue(misaligned.stream().allMatch(name -> name.endsWith(".so")));
+  }
+
+  @Test
+  void recompressesByPolicy() throws IOException {
+    final Map<String, byte[]> entries = ZipTestFiles.mixedEntries();
+    final File input = new File(tmp, "input.zip");
+    final File output = new File(tmp, "output.zip");
+    ZipTestFiles.write(input, entries, null);
+
+    new ZipAligner(input, output, null, AlignmentPolicy.DEFAULT, CompressionPolicy.DISTRIBUTION, 4).run();
+
+    ZipTestFiles.assertContents(output, entries);
+    assertTrue(ZipAligner.verify(output, AlignmentPolicy.DEFAULT).isEmpty());
+    try (ZipInput zipInput = new ZipInput(output)) {
+      for (ZipInputEntry entry : zipInput.entries()) {
+        final String name = entry.getName();
+        if (name.endsWith(".so") || name.equals("resources.arsc")) {
+          assertEquals(ZipInputEntry.STORED, entry.method(), name);
+        } else if (name.endsWith(".dex")) {
+          assertEquals(ZipInputEntry.DEFLATED, entry.method(), name);
+        }
+      }
+    }
+  }
+
+  @Test
+  void streamsEntriesTooLargeToBuffer() throws IOException {
+    // Larger than the recompressor buffers, the first is deflated and the second stored in the input.
+    final Random random = new Random(11);
+    final byte[] deflated = new byte[17 * 1024 * 1024];
+    final byte[] stored = new byte[17 * 1024 * 1024];
+    random.nextBytes(deflated);
+    random.nextBytes(stored);
+    final Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("assets/small.txt", "small".getBytes(StandardCharsets.UTF_8));
+    entries.put("assets/deflated.bin", deflated);
+    entries.put("assets/other.txt", "other".getBytes(StandardCharsets.UTF_8));
+    entries.put("assets/stored.bin", stored);
+    final File input = new File(tmp, "input.zip");
+    ZipTestFiles.write(input, entries, null);
+
+    for (String policy : new String[]{"store", "6"}) {
+      final File output = new File(tmp, "output-" + policy + ".zip");
+      new ZipAligner(input, output, null, AlignmentPolicy.DEFAULT, CompressionPolicy.parse(policy), 2).run();
+
+      ZipTestFiles.assertContents(output, entries);
+      assertTrue(ZipAligner.verify(output, AlignmentPolicy.DEFAULT).isEmpty());
+      final int method = policy.equals("store") ? ZipInputEntry.STORED : ZipInputEntry.DEFLATED;
+      try (ZipInput zipInput = new ZipInput(output)) {
+        for (ZipInputEntry entry : zipInput.entries()) {
+          assertEquals(method, entry.method(), entry.getName());
+        }
+      }
+    }
+  }
+
+  @Test
+  void writesZip64WhenEntriesOverflowTheCount() throws IOException {
+    final Map<String, byte[]> entries = new LinkedHashMap<>();
+    for (int i = 0; i < 70_000; i++) {
+      entries.put("res/raw/entry" + i + ".txt", ("entry " + i).getBytes(StandardCharsets.UTF_8));
+    }
+    entries.put("lib/arm64-v8a/libfoo.so", new byte[4097]);
+    final File input = new File(tmp, "input.zip");
+    final File output = new File(tmp, "output.zip");
+    ZipTestFiles.write(input, entries, ZipTestFiles.COMMENT);
+
+    new ZipAligner(input, output).run();
+
+    ZipTestFiles.assertContents(output, entries);
+    assertEquals(ZipTestFiles.COMMENT, ZipTestFiles.comment(output));
+    assertTrue(ZipAligner.verify(output, AlignmentPolicy.DEFAULT).isEmpty());
+    try (ZipInput zipInput = new ZipInput(output)) {
+      assertEquals(entries.size(), zipInput.entries().size());
+    }
+  }
+}
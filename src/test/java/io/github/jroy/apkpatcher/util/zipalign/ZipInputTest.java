@@ -0,0 +1,81 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ZipInputTest {
+  @TempDir
+  File tmp;
+
+  @Test
+  void readsStoredAndDeflatedEntries() throws IOException {
+    final Map<String, byte[]> entries = ZipTestFiles.mixedEntries();
+    final File zip = new File(tmp, "mixed.zip");
+    ZipTestFiles.write(zip, entries, ZipTestFiles.COMMENT);
+
+    try (ZipInput zipInput = new ZipInput(zip)) {
+      assertEquals(ZipTestFiles.COMMENT, new String(zipInput.comment(), StandardCharsets.UTF_8));
+      final List<ZipInputEntry> zipEntries = zipInput.entries();
+      assertEquals(entries.size(), zipEntries.size());
+
+      int index = 0;
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        final ZipInputEntry zipEntry = zipEntries.get(index++);
+        assertEquals(entry.getKey(), zipEntry.getName());
+        assertEquals(entry.getValue().length, zipEntry.size());
+        assertArrayEquals(entry.getValue(), readUncompressed(zipInput, zipEntry), entry.getKey());
+      }
+    }
+  }
+
+  @Test
+  void readsArchiveWithoutComment() throws IOException {
+    final File zip = new File(tmp, "plain.zip");
+    ZipTestFiles.write(zip, ZipTestFiles.mixedEntries(), null);
+
+    try (ZipInput zipInput = new ZipInput(zip)) {
+      assertEquals(0, zipInput.comment().length);
+      assertEquals(ZipTestFiles.mixedEntries().size(), zipInput.entries().size());
+    }
+  }
+
+  @Test
+  void readsZip64EntryCount() throws IOException {
+    // More entries than the end of central directory record can count, so the ZIP64 record is written.
+    final Map<String, byte[]> entries = new LinkedHashMap<>();
+    for (int i = 0; i < 70_000; i++) {
+      entries.put("res/raw/entry" + i + ".txt", ("entry " + i).getBytes(StandardCharsets.UTF_8));
+    }
+    final File zip = new File(tmp, "zip64.zip");
+    ZipTestFiles.write(zip, entries, ZipTestFiles.COMMENT);
+
+    try (ZipInput zipInput = new ZipInput(zip)) {
+      assertEquals(entries.size(), zipInput.entries().size());
+      final ZipInputEntry last = zipInput.entries().get(entries.size() - 1);
+      assertEquals("res/raw/entry69999.txt", last.getName());
+      assertArrayEquals("entry 69999".getBytes(StandardCharsets.UTF_8), readUncompressed(zipInput, last));
+    }
+  }
+
+  private static byte[] readUncompressed(ZipInput zipInput, ZipInputEntry entry) throws IOException {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    zipInput.readUncompressed(entry, ByteBuffer.allocate(8192), chunk -> {
+      final byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      data.write(bytes, 0, bytes.length);
+    });
+    return data.toByteArray();
+  }
+}
@@ -0,0 +1,125 @@
+package io.github.jroy.apkpatcher.util.zipalign;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Writes zip files through {@code java.util.zip} and reads them back, as the reference the zipalign package is checked
+ * against.
+ */
+final class ZipTestFiles {
+  static final String COMMENT = "archive comment";
+
+  private ZipTestFiles() {
+  }
+
+  /**
+   * @return Entries of odd sizes, so stored entries following them are misaligned unless they're padded. Entries ending
+   * in {@code .so} or {@code .arsc}, and every third other entry, are stored, the rest are deflated.
+   */
+  static Map<String, byte[]> mixedEntries() {
+    final Random random = new Random(7);
+    final Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("AndroidManifest.xml", text(1001));
+    entries.put("classes.dex", bytes(random, 70_001));
+    entries.put("resources.arsc", bytes(random, 4099));
+    entries.put("res/raw/empty.txt", new byte[0]);
+    entries.put("res/layout/main.xml", text(333));
+    entries.put("lib/arm64-v8a/libfoo.so", bytes(random, 20_003));
+    entries.put("assets/large.bin", bytes(random, 300_007));
+    entries.put("lib/armeabi-v7a/libbar.so", bytes(random, 513));
+    return entries;
+  }
+
+  static void write(File file, Map<String, byte[]> entries, String comment) throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      if (comment != null) {
+        out.setComment(comment);
+      }
+      int index = 0;
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        final ZipEntry zipEntry = new ZipEntry(entry.getKey());
+        final String name = entry.getKey();
+        if (name.endsWith(".so") || name.endsWith(".arsc") || index++ % 3 == 0) {
+          final CRC32 crc = new CRC32();
+          crc.update(entry.getValue());
+          zipEntry.setMethod(ZipEntry.STORED);
+          zipEntry.setSize(entry.getValue().length);
+          zipEntry.setCompressedSize(entry.getValue().length);
+          zipEntry.setCrc(crc.getValue());
+        } else {
+          zipEntry.setMethod(ZipEntry.DEFLATED);
+        }
+        out.putNextEntry(zipEntry);
+        out.write(entry.getValue());
+        out.closeEntry();
+      }
+    }
+  }
+
+  /**
+   * Checks the zip file holds exactly the entries, in order, through both {@link ZipFile} and
+   * {@link ZipInputStream}.
+   */
+  static void assertContents(File file, Map<String, byte[]> entries) throws IOException {
+    try (ZipFile zipFile = new ZipFile(file)) {
+      assertEquals(entries.size(), zipFile.size());
+      final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        final ZipEntry zipEntry = zipEntries.nextElement();
+        assertEquals(entry.getKey(), zipEntry.getName());
+        try (InputStream in = zipFile.getInputStream(zipEntry)) {
+          assertArrayEquals(entry.getValue(), in.readAllBytes(), entry.getKey());
+        }
+      }
+    }
+
+    try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        final ZipEntry zipEntry = in.getNextEntry();
+        assertNotNull(zipEntry, entry.getKey());
+        assertEquals(entry.getKey(), zipEntry.getName());
+        assertArrayEquals(entry.getValue(), in.readAllBytes(), entry.getKey());
+      }
+      assertNull(in.getNextEntry());
+    }
+  }
+
+  static String comment(File file) throws IOException {
+    try (ZipFile zipFile = new ZipFile(file)) {
+      return zipFile.getComment();
+    }
+  }
+
+  private static byte[] text(int length) {
+    final StringBuilder text = new StringBuilder();
+    while (text.length() < length) {
+      text.append("<entry name=\"value\"/>\n");
+    }
+    return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(Random random, int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}